@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+package com.pathdb.pageCacheSort;
+
+import java.nio.LongBuffer;
+
+/**
+ * Sorts fixed length keys stored back to back in a {@link LongBuffer}, in place. Keys are ordered like
+ * {@link com.pathdb.pathIndex.tree.KeyImpl#compare(long[], long[])}. The sort is a quicksort with a three way partition,
+ * so runs of equal keys are not partitioned again, and falls back to insertion sort for short ranges.
+ */
+public class LongKeySort
+{
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final LongBuffer keys;
+    private final int keySize;
+    private final long[] pivot;
+    private final long[] scratch;
+
+    public LongKeySort( LongBuffer keys, int keySize )
+    {
+        this.keys = keys;
+        this.keySize = keySize;
+        this.pivot = new long[keySize];
+        this.scratch = new long[keySize];
+    }
+
+    /**
+     * Sorts the keys with index from, inclusive, to to, exclusive.
+     */
+    public void sort( int from, int to )
+    {
+        while ( to - from > INSERTION_SORT_THRESHOLD )
+        {
+            loadKey( medianOfThree( from, (from + to) >>> 1, to - 1 ), pivot );
+            int lessEnd = from;
+            int index = from;
+            int greaterStart = to;
+            while ( index < greaterStart )
+            {
+                int comparison = compareTo( index, pivot );
+                if ( comparison < 0 )
+                {
+                    swap( lessEnd++, index++ );
+                }
+                else if ( comparison > 0 )
+                {
+                    swap( index, --greaterStart );
+                }
+                else
+                {
+                    index++;
+                }
+            }
+            // Recurse into the smaller side and loop on the larger one, so the stack stays logarithmic.
+            if ( lessEnd - from < to - greaterStart )
+            {
+                sort( from, lessEnd );
+                from = greaterStart;
+            }
+            else
+            {
+                sort( greaterStart, to );
+                to = lessEnd;
+            }
+        }
+        insertionSort( from, to );
+    }
+
+    private void insertionSort( int from, int to )
+    {
+        for ( int i = from + 1; i < to; i++ )
+        {
+            for ( int j = i; j > from && compare( j - 1, j ) > 0; j-- )
+            {
+                swap( j - 1, j );
+            }
+        }
+    }
+
+    private int medianOfThree( int a, int b, int c )
+    {
+        if ( compare( a, b ) < 0 )
+        {
+            return compare( b, c ) < 0 ? b : compare( a, c ) < 0 ? c : a;
+        }
+        return compare( a, c ) < 0 ? a : compare( b, c ) < 0 ? c : b;
+    }
+
+    private int compare( int a, int b )
+    {
+        int offsetA = a * keySize;
+        int offsetB = b * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            long valueA = keys.get( offsetA + i );
+            long valueB = keys.get( offsetB + i );
+            if ( valueA != valueB )
+            {
+                return Long.compare( valueA, valueB );
+            }
+        }
+        return 0;
+    }
+
+    private int compareTo( int a, long[] key )
+    {
+        int offset = a * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            long value = keys.get( offset + i );
+            if ( value != key[i] )
+            {
+                return Long.compare( value, key[i] );
+            }
+        }
+        return 0;
+    }
+
+    private void loadKey( int index, long[] dest )
+    {
+        int offset = index * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            dest[i] = keys.get( offset + i );
+        }
+    }
+
+    private void swap( int a, int b )
+    {
+        if ( a == b )
+        {
+            return;
+        }
+        int offsetA = a * keySize;
+        int offsetB = b * keySize;
+        loadKey( a, scratch );
+        for ( int i = 0; i < keySize; i++ )
+        {
+            keys.put( offsetA + i, keys.get( offsetB + i ) );
+            keys.put( offsetB + i, scratch[i] );
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+package com.pathdb.pageCacheSort;
+
+import java.io.IOException;
+
+/**
+ * Tournament tree for merging sorted page sets. Every inner node holds the loser of the match played there, and the
+ * overall winner is kept apart. After the winner's key is taken, only the matches on the path from its leaf to the
+ * root are replayed, so every key costs log2(k) comparisons. Keys are compared in the buffers of the iterators, so
+ * merging does not allocate.
+ */
+class LoserTree
+{
+    private final Sorter.SetIteratorImpl[] iterators;
+    private final boolean[] exhausted;
+    private final int[] losers;
+    private int winner;
+
+    LoserTree( Sorter.SetIteratorImpl[] iterators ) throws IOException
+    {
+        this.iterators = iterators;
+        this.exhausted = new boolean[iterators.length];
+        this.losers = new int[iterators.length];
+        for ( int i = 0; i < iterators.length; i++ )
+        {
+            exhausted[i] = !iterators[i].hasNext();
+        }
+        winner = build( 1 );
+    }
+
+    boolean hasNext()
+    {
+        return !exhausted[winner];
+    }
+
+    /**
+     * Copies the smallest key into dest at the given offset, and moves on to the next one.
+     */
+    void next( long[] dest, int offset ) throws IOException
+    {
+        iterators[winner].next( dest, offset );
+        exhausted[winner] = !iterators[winner].hasNext();
+        int candidate = winner;
+        for ( int node = (winner + iterators.length) >> 1; node > 0; node >>= 1 )
+        {
+            if ( beats( losers[node], candidate ) )
+            {
+                int loser = candidate;
+                candidate = losers[node];
+                losers[node] = loser;
+            }
+        }
+        winner = candidate;
+    }
+
+    private int build( int node )
+    {
+        if ( node >= iterators.length )
+        {
+            return node - iterators.length;
+        }
+        int left = build( node * 2 );
+        int right = build( node * 2 + 1 );
+        if ( beats( left, right ) )
+        {
+            losers[node] = right;
+            return left;
+        }
+        losers[node] = left;
+        return right;
+    }
+
+    private boolean beats( int a, int b )
+    {
+        if ( exhausted[a] || exhausted[b] )
+        {
+            return !exhausted[a];
+        }
+        int comparison = iterators[a].compareNext( iterators[b] );
+        return comparison < 0 || (comparison == 0 && a < b);
+    }
+}
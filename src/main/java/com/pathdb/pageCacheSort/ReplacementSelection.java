@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+package com.pathdb.pageCacheSort;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * Forms sorted runs with replacement selection. The keys in memory are kept in a heap, ordered on the run they belong to
+ * and then on the key. The smallest key of the current run is written out, and the next incoming key takes its slot.
+ * An incoming key smaller than the last written key can not join the current run anymore, so it is held back for the
+ * next one. On random input runs are about twice as long as the memory, and input which is already nearly sorted ends
+ * up in a single run.
+ */
+class ReplacementSelection
+{
+    interface Output
+    {
+        /**
+         * Appends the key with the given index in keys to the current run.
+         */
+        void add( LongBuffer keys, int keyIndex ) throws IOException;
+
+        void endRun() throws IOException;
+    }
+
+    private final LongBuffer slots;
+    private final int capacity;
+    private final int keySize;
+    private final Output output;
+    private final int[] heap;
+    private final int[] runs;
+    private final long[] lastOutput;
+    private int size = 0;
+    private int currentRun = 0;
+
+    ReplacementSelection( LongBuffer slots, int capacity, int keySize, Output output )
+    {
+        this.slots = slots;
+        this.capacity = capacity;
+        this.keySize = keySize;
+        this.output = output;
+        this.heap = new int[capacity];
+        this.runs = new int[capacity];
+        this.lastOutput = new long[keySize];
+    }
+
+    void add( long[] key ) throws IOException
+    {
+        if ( size < capacity )
+        {
+            int slot = size;
+            store( slot, key );
+            runs[slot] = currentRun;
+            heap[size] = slot;
+            siftUp( size++ );
+            return;
+        }
+        int slot = heap[0];
+        emit( slot );
+        store( slot, key );
+        runs[slot] = compareToLastOutput( key ) < 0 ? currentRun + 1 : currentRun;
+        siftDown( 0 );
+    }
+
+    /**
+     * Writes out every key still held in memory and ends the last run.
+     */
+    void finish() throws IOException
+    {
+        while ( size > 0 )
+        {
+            emit( heap[0] );
+            heap[0] = heap[--size];
+            siftDown( 0 );
+        }
+        output.endRun();
+    }
+
+    private void emit( int slot ) throws IOException
+    {
+        if ( runs[slot] != currentRun )
+        {
+            output.endRun();
+            currentRun = runs[slot];
+        }
+        output.add( slots, slot );
+        int offset = slot * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            lastOutput[i] = slots.get( offset + i );
+        }
+    }
+
+    private void store( int slot, long[] key )
+    {
+        int offset = slot * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            slots.put( offset + i, key[i] );
+        }
+    }
+
+    private int compareToLastOutput( long[] key )
+    {
+        for ( int i = 0; i < keySize; i++ )
+        {
+            if ( key[i] != lastOutput[i] )
+            {
+                return Long.compare( key[i], lastOutput[i] );
+            }
+        }
+        return 0;
+    }
+
+    private boolean less( int slotA, int slotB )
+    {
+        if ( runs[slotA] != runs[slotB] )
+        {
+            return runs[slotA] < runs[slotB];
+        }
+        int offsetA = slotA * keySize;
+        int offsetB = slotB * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            long a = slots.get( offsetA + i );
+            long b = slots.get( offsetB + i );
+            if ( a != b )
+            {
+                return a < b;
+            }
+        }
+        return false;
+    }
+
+    private void siftUp( int index )
+    {
+        int slot = heap[index];
+        while ( index > 0 )
+        {
+            int parent = (index - 1) >> 1;
+            if ( !less( slot, heap[parent] ) )
+            {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    }
+
+    private void siftDown( int index )
+    {
+        if ( size == 0 )
+        {
+            return;
+        }
+        int slot = heap[index];
+        int half = size >> 1;
+        while ( index < half )
+        {
+            int child = 2 * index + 1;
+            if ( child + 1 < size && less( heap[child + 1], heap[child] ) )
+            {
+                child++;
+            }
+            if ( !less( heap[child], slot ) )
+            {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    }
+}
@@ -8,17 +8,26 @@
 package com.pathdb.pageCacheSort;
 
 import com.pathdb.pathIndex.tree.KeyImpl;
+import com.pathdb.storage.DeltaKeyEncoding;
 import com.pathdb.storage.DiskCache;
 import com.pathdb.storage.PersistedPageHeader;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 /**
  * Main entry into the Sorter.
@@ -26,6 +35,31 @@ import java.util.PriorityQueue;
 public class Sorter
 {
     public int FAN_IN = 64;
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Merge with a {@link LoserTree} instead of a priority queue of set iterators.
+     */
+    public boolean loserTreeMerge = true;
+    /**
+     * How the unsorted keys are turned into the initial runs. Must be set before the first key is added.
+     */
+    public RunGeneration runGeneration = RunGeneration.SORTED_ARENA;
+    /**
+     * Write the runs of all but the last merge pass with the delta encoding of compressed leaves. The last pass always
+     * writes plain leaves. Must be set before the first key is added.
+     */
+    public boolean compressRuns = true;
+    /**
+     * Read the next page of every run in the background while the merge consumes the current one.
+     */
+    public boolean readAhead = true;
+    /**
+     * Share of a leaf the last merge pass fills, in (0, 1]. Leaving room in bulk loaded leaves lets later inserts
+     * land without splitting them right away.
+     */
+    public double leafFillFactor = 1.0;
+    private ForkJoinPool mergePool;
+    private ExecutorService readAheadPool;
     PageProxyCursor setIteratorCursor;
     DiskCache writeToDisk;
     DiskCache readFromDisk;
@@ -36,16 +70,63 @@ public class Sorter
     long finalPage;
     public final int keySize;
     final int keyByteSize;
+    final int keysPerPage;
     LinkedList<PageSet> writePageSets = new LinkedList<>();
     LinkedList<PageSet> readPageSets = new LinkedList<>();
     int byteRepSize = 0;
-    PriorityQueue<long[]> bulkLoadedKeys = new PriorityQueue<>( KeyImpl.getComparator() );
     ArrayList<long[]> sortedKeys = new ArrayList<>();
+    public static final long DEFAULT_RUN_MEMORY = 64 * 1024 * 1024;
+    final LongBuffer runArena;
+    final int runCapacity;
+    int runKeyCount = 0;
+    int runCount = 0;
+    private ReplacementSelection replacementSelection;
+    private RunPageWriter runWriter;
+    private LeafListener leafListener;
+
+    /**
+     * Is told about every leaf the last merge pass writes, in key order, while the sort is running.
+     */
+    public interface LeafListener
+    {
+        /**
+         * @param firstKey the smallest key of the leaf. Not reused by the sorter.
+         */
+        void leafWritten( long pageId, long[] firstKey ) throws IOException;
+    }
+
+    public enum RunGeneration
+    {
+        /**
+         * Fill the run memory, sort it in place and write it out as one run.
+         */
+        SORTED_ARENA,
+        /**
+         * Use the run memory as the heap of a {@link ReplacementSelection}.
+         */
+        REPLACEMENT_SELECTION
+    }
 
     public Sorter( int keySize ) throws IOException
+    {
+        this( keySize, DEFAULT_RUN_MEMORY );
+    }
+
+    /**
+     * @param runMemory number of off-heap bytes to collect unsorted keys in. Every time it is full, the keys are sorted
+     * in memory and written out as one run, so a larger value means fewer and longer runs to merge.
+     */
+    public Sorter( int keySize, long runMemory ) throws IOException
     {
         this.keySize = keySize;
         this.keyByteSize = this.keySize * 8;
+        this.keysPerPage = (ALT_MAX_PAGE_SIZE - 1) / keyByteSize;
+        // Whole pages per run, so only the last run of a sort ends with a page that is not full.
+        long runPages = Math.max( 1, runMemory / ((long) keysPerPage * keyByteSize) );
+        long maxRunPages = Integer.MAX_VALUE / keyByteSize / keysPerPage;
+        this.runCapacity = (int) (Math.min( runPages, maxRunPages ) * keysPerPage);
+        this.runArena = ByteBuffer.allocateDirect( runCapacity * keyByteSize ).order( ByteOrder.nativeOrder() )
+                .asLongBuffer();
         writeToDisk = DiskCache.persistentDiskCache( keySize + "tmp_sortFileA.dat", false );
         readFromDisk = DiskCache.temporaryDiskCache( keySize + "tmp_sortFileB.dat", false );
         writeToCursor = writeToDisk.getCursor( 0 );
@@ -56,6 +137,7 @@ public class Sorter
         flushAfterSortedKey();
         writeToCursor.goToPage( writeToCursor.getCurrentPageId() - 1 );
         PersistedPageHeader.setFollowingID( writeToCursor, -1 );
+        writeToCursor.flush();
         readFromDisk.shutdown();
         readFromDisk.pageCacheFile.delete();
         setIteratorCursor = null;
@@ -70,11 +152,54 @@ public class Sorter
 
     public SetIterator sort() throws IOException
     {
-        flushBulkLoadedKeys(); //check the contents of last page
+        return sort( null );
+    }
+
+    /**
+     * @param leafListener told about every leaf of the sorted output as it is written, or null.
+     */
+    public SetIterator sort( LeafListener leafListener ) throws IOException
+    {
+        if ( leafFillFactor <= 0 || leafFillFactor > 1 )
+        {
+            throw new IllegalArgumentException( "Leaf fill factor must be in (0, 1], was " + leafFillFactor + "." );
+        }
+        this.leafListener = leafListener;
+        if ( replacementSelection != null )
+        {
+            replacementSelection.finish();
+        }
+        else
+        {
+            spillRun(); //check the contents of last page
+        }
+        if ( writePageSets.isEmpty() )
+        {
+            // Nothing was added, the result is a single empty page.
+            runWriter().writePage();
+            endInitialRun();
+        }
         writeToCursor.goToPage( writeToCursor.getCurrentPageId() - 1 );
         PersistedPageHeader.setFollowingID( writeToCursor, -1 );
+        writeToCursor.flush();
 
-        sortHelper();
+        try
+        {
+            sortHelper();
+        }
+        finally
+        {
+            if ( mergePool != null )
+            {
+                mergePool.shutdown();
+                mergePool = null;
+            }
+            if ( readAheadPool != null )
+            {
+                readAheadPool.shutdown();
+                readAheadPool = null;
+            }
+        }
         readFromDisk.shutdown();
         readFromDisk.pageCacheFile.delete();
         setIteratorCursor = null;
@@ -86,8 +211,7 @@ public class Sorter
     private void sortHelper() throws IOException
     {
         swapPageSets();
-        setIteratorCursor = readFromDisk.getCursor( 0 );
-        writeToCursor = writeToDisk.getCursor( 0 );
+        List<LinkedList<PageSet>> groups = new ArrayList<>();
         while ( !readPageSets.isEmpty() )
         {
             int modifiedFanOut = Math.min( readPageSets.size(), FAN_IN );
@@ -102,31 +226,186 @@ public class Sorter
                 PageSet nextSet = readPageSets.pop();
                 pageSets.add( nextSet );
             }
-            mergeSets( pageSets );
+            groups.add( pageSets );
+        }
+        // The groups of a pass are independent, and each one writes to its own range of pages, big enough for its
+        // keys however well they compress, so they can be merged at the same time. The last pass writes plain leaves.
+        boolean lastPass = groups.size() == 1;
+        boolean compressOutput = compressRuns && !lastPass;
+        List<ForkJoinTask<PageSet>> merges = new ArrayList<>( groups.size() );
+        long outputPage = 0;
+        for ( LinkedList<PageSet> pageSets : groups )
+        {
+            merges.add( mergePool().submit( new Merge( pageSets, outputPage, compressOutput, lastPass ) ) );
+            outputPage += maxPagesFor( pageSets, compressOutput, lastPass );
+        }
+        for ( ForkJoinTask<PageSet> merge : merges )
+        {
+            writePageSets.add( join( merge ) );
         }
-        flushAfterSortedKey();
         if ( writePageSets.size() > 1 )
         {
             sortHelper();
         }
     }
 
-    private void mergeSets( LinkedList<PageSet> pageSets ) throws IOException
+    private long maxPagesFor( List<PageSet> pageSets, boolean compressed, boolean lastPass )
     {
-        writePageSets.add( new PageSet( pageSets ) );
-        PriorityQueue<SetIterator> pQueue = new PriorityQueue<>();
+        long keys = 0;
         for ( PageSet set : pageSets )
         {
-            pQueue.add( new SetIteratorImpl( set ) );
+            keys += set.keyCount;
+        }
+        long keysPerOutputPage =
+                compressed ? ALT_MAX_PAGE_SIZE / DeltaKeyEncoding.maxEncodedLength( keySize ) : keysPerPage( lastPass );
+        return Math.max( 1, (keys + keysPerOutputPage - 1) / keysPerOutputPage );
+    }
+
+    /**
+     * @return the number of keys in a plain page, less than a full page for the leaves of the last pass.
+     */
+    private int keysPerPage( boolean lastPass )
+    {
+        if ( !lastPass )
+        {
+            return keysPerPage;
+        }
+        return Math.max( 1, (int) (keysPerPage * leafFillFactor) );
+    }
+
+    private ForkJoinPool mergePool()
+    {
+        if ( mergePool == null )
+        {
+            mergePool = new ForkJoinPool( parallelism );
         }
-        SetIterator curr;
-        while ( pQueue.size() > 0 )
+        return mergePool;
+    }
+
+    private ExecutorService readAheadPool()
+    {
+        if ( readAheadPool == null )
         {
-            curr = pQueue.poll();
-            addSortedKey( curr.getNext() );
-            if ( curr.hasNext() )
+            // Only ever runs page reads, which never wait on each other, so a fixed number of threads is enough.
+            readAheadPool = Executors.newFixedThreadPool( Math.max( 2, parallelism * 2 ), task ->
             {
-                pQueue.add( curr );
+                Thread thread = new Thread( task, "sort-read-ahead" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+        }
+        return readAheadPool;
+    }
+
+    private static <T> T join( Future<T> task ) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while merging.", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Merging failed.", e.getCause() );
+        }
+    }
+
+    /**
+     * Merges one group of page sets into a single page set. The merged keys are written starting at the given page,
+     * with cursors and a key buffer of its own, so merges never share state.
+     */
+    private class Merge implements Callable<PageSet>
+    {
+        private final LinkedList<PageSet> pageSets;
+        private final long outputPage;
+        private final boolean compressOutput;
+        private final boolean lastPass;
+        private final long[] key = new long[keySize];
+        private RunPageWriter writer;
+
+        Merge( LinkedList<PageSet> pageSets, long outputPage, boolean compressOutput, boolean lastPass )
+        {
+            this.pageSets = pageSets;
+            this.outputPage = outputPage;
+            this.compressOutput = compressOutput;
+            this.lastPass = lastPass;
+        }
+
+        @Override
+        public PageSet call() throws IOException
+        {
+            PageProxyCursor mergeFromCursor = readAhead ? null : readFromDisk.getCursor( pageSets.getFirst().peek() );
+            PageProxyCursor mergeToCursor = writeToDisk.getCursor( outputPage );
+            writer = new RunPageWriter( mergeToCursor, compressOutput );
+            if ( lastPass )
+            {
+                writer.leafListener = leafListener;
+                writer.keysPerRawPage = keysPerPage( true );
+            }
+            if ( loserTreeMerge )
+            {
+                mergeWithLoserTree( mergeFromCursor );
+            }
+            else
+            {
+                mergeWithQueue( mergeFromCursor );
+            }
+            PageSet merged = writer.finish();
+            if ( merged.isEmpty() )
+            {
+                // Only empty sets were merged, the result is still a page.
+                writer.writePage();
+                merged = writer.finish();
+            }
+            mergeToCursor.goToPage( merged.pagesInSet.getLast() );
+            PersistedPageHeader.setFollowingID( mergeToCursor, -1 );
+            mergeToCursor.flush();
+            return merged;
+        }
+
+        private void mergeWithLoserTree( PageProxyCursor mergeFromCursor ) throws IOException
+        {
+            SetIteratorImpl[] iterators = new SetIteratorImpl[pageSets.size()];
+            for ( int i = 0; i < iterators.length; i++ )
+            {
+                iterators[i] = new SetIteratorImpl( pageSets.get( i ), mergeFromCursor, readAhead );
+            }
+            LoserTree tree = new LoserTree( iterators );
+            while ( tree.hasNext() )
+            {
+                tree.next( key, 0 );
+                writer.add( key );
+            }
+        }
+
+        private void mergeWithQueue( PageProxyCursor mergeFromCursor ) throws IOException
+        {
+            PriorityQueue<SetIterator> pQueue = new PriorityQueue<>();
+            for ( PageSet set : pageSets )
+            {
+                SetIteratorImpl iterator = new SetIteratorImpl( set, mergeFromCursor, readAhead );
+                if ( iterator.hasNext() )
+                {
+                    pQueue.add( iterator );
+                }
+            }
+            SetIterator curr;
+            while ( pQueue.size() > 0 )
+            {
+                curr = pQueue.poll();
+                writer.add( curr.getNext() );
+                if ( curr.hasNext() )
+                {
+                    pQueue.add( curr );
+                }
             }
         }
     }
@@ -172,22 +451,26 @@ public class Sorter
     public void addUnsortedKey( long[] key ) throws IOException
     {
         assert (key.length == keySize);
-        if ( byteRepSize + (keySize * 8) >= ALT_MAX_PAGE_SIZE )
+        if ( runGeneration == RunGeneration.REPLACEMENT_SELECTION )
         {
-            flushBulkLoadedKeys();
+            if ( replacementSelection == null )
+            {
+                replacementSelection =
+                        new ReplacementSelection( runArena, runCapacity, keySize, new InitialRunOutput() );
+            }
+            replacementSelection.add( key );
+            return;
         }
-        byteRepSize += key.length * 8;
-        bulkLoadedKeys.add( key );
-    }
-
-    private void addSortedKey( long[] key ) throws IOException
-    {
-        if ( byteRepSize + (keySize * 8) >= ALT_MAX_PAGE_SIZE )
+        if ( runKeyCount == runCapacity )
         {
-            flushAfterSortedKey();
+            spillRun();
         }
-        byteRepSize += key.length * 8;
-        sortedKeys.add( key );
+        int offset = runKeyCount * keySize;
+        for ( int i = 0; i < keySize; i++ )
+        {
+            runArena.put( offset + i, key[i] );
+        }
+        runKeyCount++;
     }
 
     /* Testing for compressed pages.
@@ -233,27 +516,178 @@ public class Sorter
         writeToCursor.goToPage( writeToCursor.getCurrentPageId() + 1 );
     }
 
-    private void flushBulkLoadedKeys() throws IOException
+    /**
+     * Sorts the keys collected in the run arena and writes them to consecutive pages, which form one page set.
+     */
+    private void spillRun() throws IOException
     {
-        //dump sorted keys to page,
-        PersistedPageHeader.setNodeTypeLeaf( writeToCursor );
-        PersistedPageHeader.setKeyLength( writeToCursor, keySize );
-        PersistedPageHeader.setNumberOfKeys( writeToCursor, bulkLoadedKeys.size() );
-        PersistedPageHeader.setPrecedingId( writeToCursor, writeToCursor.getCurrentPageId() - 1 );
-        PersistedPageHeader.setFollowingID( writeToCursor, writeToCursor.getCurrentPageId() + 1 );
-        writeToCursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-        while ( bulkLoadedKeys.size() > 0 )
+        new LongKeySort( runArena, keySize ).sort( 0, runKeyCount );
+        RunPageWriter writer = runWriter();
+        for ( int i = 0; i < runKeyCount; i++ )
         {
-            long[] sortedKey = bulkLoadedKeys.poll();
-            for ( long val : sortedKey )
+            writer.add( runArena, i );
+        }
+        endInitialRun();
+        runKeyCount = 0;
+    }
+
+    private RunPageWriter runWriter()
+    {
+        if ( runWriter == null )
+        {
+            runWriter = new RunPageWriter( writeToCursor, compressRuns );
+        }
+        return runWriter;
+    }
+
+    private void endInitialRun() throws IOException
+    {
+        PageSet run = runWriter().finish();
+        if ( !run.isEmpty() )
+        {
+            writePageSets.add( run );
+            runCount++;
+        }
+    }
+
+    /**
+     * @return the number of runs the unsorted keys were split into before merging.
+     */
+    public int getRunCount()
+    {
+        return runCount;
+    }
+
+    /**
+     * Hands the runs formed by replacement selection to the run writer.
+     */
+    private class InitialRunOutput implements ReplacementSelection.Output
+    {
+        @Override
+        public void add( LongBuffer keys, int keyIndex ) throws IOException
+        {
+            runWriter().add( keys, keyIndex );
+        }
+
+        @Override
+        public void endRun() throws IOException
+        {
+            endInitialRun();
+        }
+    }
+
+    /**
+     * Writes the keys of a run to consecutive pages, starting at the current page of the cursor. Compressed pages hold
+     * the keys in the {@link DeltaKeyEncoding} of the compressed leaves. Every page is encoded from an all zero key, so
+     * it can be decoded on its own. Plain pages are leaves, and are handed to the leaf listener once written.
+     */
+    private class RunPageWriter
+    {
+        private final PageProxyCursor cursor;
+        private final boolean compressed;
+        private LeafListener leafListener;
+        private int keysPerRawPage = keysPerPage;
+        private final long[] pageKeys;
+        private final byte[] pageBytes;
+        private final byte[] encodedKey;
+        private final long[] key = new long[keySize];
+        private final long[] previous = new long[keySize];
+        private int keysInPage = 0;
+        private int bytesInPage = 0;
+        private PageSet run;
+
+        RunPageWriter( PageProxyCursor cursor, boolean compressed )
+        {
+            this.cursor = cursor;
+            this.compressed = compressed;
+            this.pageKeys = compressed ? null : new long[keysPerPage * keySize];
+            this.pageBytes = compressed ? new byte[ALT_MAX_PAGE_SIZE] : null;
+            this.encodedKey = compressed ? new byte[DeltaKeyEncoding.maxEncodedLength( keySize )] : null;
+            this.run = new PageSet( compressed );
+        }
+
+        void add( LongBuffer keys, int keyIndex ) throws IOException
+        {
+            int offset = keyIndex * keySize;
+            for ( int i = 0; i < keySize; i++ )
             {
-                writeToCursor.putLong( val );
+                key[i] = keys.get( offset + i );
             }
+            add( key );
+        }
+
+        void add( long[] key ) throws IOException
+        {
+            if ( compressed )
+            {
+                int length = DeltaKeyEncoding.encode( key, previous, encodedKey, 0 );
+                if ( bytesInPage + length > ALT_MAX_PAGE_SIZE )
+                {
+                    writePage();
+                    length = DeltaKeyEncoding.encode( key, previous, encodedKey, 0 );
+                }
+                System.arraycopy( encodedKey, 0, pageBytes, bytesInPage, length );
+                System.arraycopy( key, 0, previous, 0, keySize );
+                bytesInPage += length;
+            }
+            else
+            {
+                if ( keysInPage == keysPerRawPage )
+                {
+                    writePage();
+                }
+                System.arraycopy( key, 0, pageKeys, keysInPage * keySize, keySize );
+            }
+            keysInPage++;
+            run.keyCount++;
+        }
+
+        /**
+         * Writes the last page of the run if it holds any keys.
+         *
+         * @return the pages of the run.
+         */
+        PageSet finish() throws IOException
+        {
+            if ( keysInPage > 0 )
+            {
+                writePage();
+            }
+            PageSet finished = run;
+            run = new PageSet( compressed );
+            return finished;
+        }
+
+        void writePage() throws IOException
+        {
+            long pageId = cursor.getCurrentPageId();
+            PersistedPageHeader.setNodeTypeLeaf( cursor );
+            PersistedPageHeader.setKeyLength( cursor, keySize );
+            PersistedPageHeader.setNumberOfKeys( cursor, keysInPage );
+            PersistedPageHeader.setPrecedingId( cursor, pageId - 1 );
+            PersistedPageHeader.setFollowingID( cursor, pageId + 1 );
+            cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
+            if ( compressed )
+            {
+                cursor.putBytes( pageBytes );
+                Arrays.fill( previous, 0 );
+                bytesInPage = 0;
+            }
+            else
+            {
+                for ( int i = 0; i < keysInPage * keySize; i++ )
+                {
+                    cursor.putLong( pageKeys[i] );
+                }
+                if ( leafListener != null )
+                {
+                    leafListener.leafWritten( pageId, Arrays.copyOf( pageKeys, keySize ) );
+                }
+            }
+            run.add( pageId );
+            cursor.goToPage( pageId + 1 );
+            keysInPage = 0;
         }
-        bulkLoadedKeys.clear();
-        byteRepSize = 0;
-        writePageSets.add( new PageSet( writeToCursor.getCurrentPageId() ) );
-        writeToCursor.goToPage( writeToCursor.getCurrentPageId() + 1 );
     }
 
     private void flushAfterSortedKey() throws IOException
@@ -283,46 +717,120 @@ public class Sorter
     }
 
 
+    /**
+     * Reads the pages of a set into a buffer of keys, decoding them if the set is compressed. The buffer is reused by
+     * the next read.
+     */
+    private class PageReader
+    {
+        private final DiskCache disk;
+        private final PageProxyCursor cursor;
+        private byte[] byteRep = new byte[ALT_MAX_PAGE_SIZE];
+        private long[] decoded;
+        private final long[] decodedKey = new long[keySize];
+
+        /**
+         * @param cursor cursor to read the pages with, or null to get a new cursor for every page.
+         */
+        PageReader( DiskCache disk, PageProxyCursor cursor )
+        {
+            this.disk = disk;
+            this.cursor = cursor;
+        }
+
+        LongBuffer read( long pageId, boolean compressed ) throws IOException
+        {
+            PageProxyCursor pageCursor = cursor != null ? cursor : disk.getCursor( pageId );
+            pageCursor.goToPage( pageId );
+            int keyCount = PersistedPageHeader.getNumberOfKeys( pageCursor );
+            pageCursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
+            int byteAmount = compressed ? ALT_MAX_PAGE_SIZE : keyCount * keyByteSize;
+            if ( byteAmount != byteRep.length )
+            {
+                byteRep = new byte[byteAmount];
+            }
+            pageCursor.getBytes( byteRep );
+            if ( !compressed )
+            {
+                return ByteBuffer.wrap( byteRep ).asLongBuffer();
+            }
+            if ( decoded == null || decoded.length < keyCount * keySize )
+            {
+                decoded = new long[keyCount * keySize];
+            }
+            Arrays.fill( decodedKey, 0 );
+            int offset = 0;
+            for ( int i = 0; i < keyCount; i++ )
+            {
+                offset = DeltaKeyEncoding.decode( byteRep, offset, decodedKey, decodedKey );
+                System.arraycopy( decodedKey, 0, decoded, i * keySize, keySize );
+            }
+            return LongBuffer.wrap( decoded, 0, keyCount * keySize );
+        }
+    }
+
     public class SetIteratorImpl implements SetIterator, Comparable<SetIterator>
     {
         boolean setExhausted = false;
         PageSet set;
-        byte[] byteRep = new byte[ALT_MAX_PAGE_SIZE];
-        LongBuffer buffer = ByteBuffer.wrap( byteRep ).asLongBuffer();
+        LongBuffer buffer;
+        private PageReader reader;
+        private PageReader aheadReader;
+        private Future<LongBuffer> nextBuffer;
 
         public SetIteratorImpl( PageSet set ) throws IOException
         {
-            this.set = set;
-            fillBuffer( set.pop() );
+            this( set, setIteratorCursor, false );
         }
 
-        private void fillBuffer( long pageId ) throws IOException
+        /**
+         * @param cursor cursor to read the pages of the set with, or null to get a new cursor for every page.
+         * @param readAhead read the next page in the background while the current one is consumed. The pages are then
+         * read with two cursors of the iterator's own, and the given cursor is not used.
+         */
+        public SetIteratorImpl( PageSet set, PageProxyCursor cursor, boolean readAhead ) throws IOException
         {
-            if ( setIteratorCursor != null )
+            this.set = set;
+            if ( readAhead )
             {
-                setIteratorCursor.goToPage( pageId );
-                int byteAmount = PersistedPageHeader.getNumberOfKeys( setIteratorCursor ) * keySize * 8;
-                setIteratorCursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-                if ( byteAmount != byteRep.length )
-                {
-                    byteRep = new byte[byteAmount];
-                }
-                setIteratorCursor.getBytes( byteRep );
-                buffer = ByteBuffer.wrap( byteRep ).asLongBuffer();
+                reader = new PageReader( readFromDisk, readFromDisk.getCursor( set.peek() ) );
+                aheadReader = new PageReader( readFromDisk, readFromDisk.getCursor( set.peek() ) );
             }
             else
             {
-                PageProxyCursor cursor = readFromDisk.getCursor( pageId );
-                int byteAmount = PersistedPageHeader.getNumberOfKeys( cursor ) * keySize * 8;
-                cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-                if ( byteAmount != byteRep.length )
-                {
-                    byteRep = new byte[byteAmount];
-                }
-                cursor.getBytes( byteRep );
-                buffer = ByteBuffer.wrap( byteRep ).asLongBuffer();
+                reader = new PageReader( readFromDisk, cursor );
+            }
+            buffer = reader.read( set.pop(), set.compressed );
+            readNextPageAhead();
+        }
+
+        private void fillBuffer() throws IOException
+        {
+            if ( nextBuffer == null )
+            {
+                buffer = reader.read( set.pop(), set.compressed );
+                return;
             }
-            buffer.position( 0 );
+            buffer = join( nextBuffer );
+            set.pop();
+            // The page just read ahead is current now, the reader of the page before is free for the next one.
+            PageReader consumed = reader;
+            reader = aheadReader;
+            aheadReader = consumed;
+            nextBuffer = null;
+            readNextPageAhead();
+        }
+
+        private void readNextPageAhead()
+        {
+            if ( aheadReader == null || set.isEmpty() )
+            {
+                return;
+            }
+            PageReader pageReader = aheadReader;
+            long pageId = set.peek();
+            boolean compressed = set.compressed;
+            nextBuffer = readAheadPool().submit( () -> pageReader.read( pageId, compressed ) );
         }
 
         public long[] getNext() throws IOException
@@ -339,6 +847,34 @@ public class Sorter
             return null;
         }
 
+        /**
+         * Copies the next key into dest at the given offset. {@link #hasNext()} must have returned true.
+         */
+        void next( long[] dest, int offset )
+        {
+            buffer.get( dest, offset, keySize );
+        }
+
+        /**
+         * Compares the next keys of both iterators where they are in the buffers, the same way as
+         * {@link KeyImpl#compare(long[], long[])}. {@link #hasNext()} must have returned true for both.
+         */
+        int compareNext( SetIteratorImpl other )
+        {
+            int position = buffer.position();
+            int otherPosition = other.buffer.position();
+            for ( int i = 0; i < keySize; i++ )
+            {
+                long a = buffer.get( position + i );
+                long b = other.buffer.get( otherPosition + i );
+                if ( a != b )
+                {
+                    return Long.compare( a, b );
+                }
+            }
+            return 0;
+        }
+
         public long[] peekNext() throws IOException
         {
             long[] ret = getNext();
@@ -351,13 +887,13 @@ public class Sorter
 
         public boolean hasNext() throws IOException
         {
-            if ( (buffer.position() + keySize) > buffer.capacity() && set.isEmpty() )
+            if ( (buffer.position() + keySize) > buffer.limit() && set.isEmpty() )
             {
                 return false;
             }
-            if ( (buffer.position() + keySize) > buffer.capacity() && !set.isEmpty() )
+            if ( (buffer.position() + keySize) > buffer.limit() && !set.isEmpty() )
             {
-                fillBuffer( set.pop() );
+                fillBuffer();
             }
             return true;
         }
@@ -379,12 +915,23 @@ public class Sorter
     private class PageSet
     {
         public LinkedList<Long> pagesInSet;
+        /**
+         * Number of keys in the set, only tracked for runs.
+         */
+        long keyCount = 0;
+        boolean compressed = false;
 
         public PageSet()
         {
             pagesInSet = new LinkedList<>();
         }
 
+        public PageSet( boolean compressed )
+        {
+            pagesInSet = new LinkedList<>();
+            this.compressed = compressed;
+        }
+
         public PageSet( long pageId )
         {
             pagesInSet = new LinkedList<>();
@@ -4,102 +4,90 @@
  * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
  * You may use, distribute and modify this code under the terms of the GPLv3 license.
  */
-
 package com.pathdb.pathDB;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Exists for abstracting this comparision logic between path prefixes and paths.
+ * <p>
+ * The node ids are packed in a single array, so a path is two objects no matter how long it is.
  */
 public class AbstractPath implements Comparable<AbstractPath>
 {
-    @Override
-    public int compareTo( AbstractPath o )
-    {
-        if ( this instanceof PathPrefix )
-        {
-            if ( o instanceof Path )
-            {
-                return comparePathPrefixToPath( (PathPrefix) this, (Path) o );
-            }
-            else if ( o instanceof PathPrefix )
-            {
-                return comparePathPrefixToPathPrefix( (PathPrefix) this, (PathPrefix) o );
-            }
-        }
-        else if ( this instanceof Path )
-        {
-            if ( o instanceof Path )
-            {
-                return comparePathToPath( (Path) this, (Path) o );
-            }
-            else if ( o instanceof PathPrefix )
-            {
-                // The comparision gets reversed here, so we need to invert the result.
-                return -comparePathPrefixToPath( (PathPrefix) o, (Path) this );
-            }
-        }
-        throw new UnsupportedOperationException(
-                String.format( "Attempted comparision of unsupported types. Supported types are %s and %s.",
-                        Path.class.getName(), PathPrefix.class.getName() ) );
-    }
+    public final int length;
+    final long[] nodeIds;
 
-    private int comparePathPrefixToPath( PathPrefix a, Path b )
+    AbstractPath( int length, long[] nodeIds )
     {
-        if ( a.length != b.length )
-        {
-            return a.length - b.length;
-        }
-        for ( int i = 0; i < a.prefixLength; i++ )
-        {
-            if ( a.nodes.get( i ).getId() - b.nodes.get( i ).getId() != 0 )
-            {
-                return Long.compare( a.nodes.get( i ).getId(), b.nodes.get( i ).getId() );
-            }
-        }
-        return 0;
+        this.length = length;
+        this.nodeIds = nodeIds;
     }
 
-    private int comparePathPrefixToPathPrefix( PathPrefix a, PathPrefix b )
+    /**
+     * Paths are ordered on their length first, then on the node ids they have in common. A prefix therefore compares
+     * equal to every path it is a prefix of.
+     */
+    @Override
+    public int compareTo( AbstractPath o )
     {
-        if ( a == b )
+        if ( this == o )
         {
             return 0;
         }
-        if ( a.length != b.length )
+        if ( length != o.length )
         {
-            return a.length - b.length;
+            return length - o.length;
         }
-        if ( a.prefixLength != b.prefixLength )
+        int common = Math.min( nodeIds.length, o.nodeIds.length );
+        for ( int i = 0; i < common; i++ )
         {
-            return a.length - b.length;
-        }
-        for ( int i = 0; i < a.prefixLength; i++ )
-        {
-            if ( a.nodes.get( i ).getId() - b.nodes.get( i ).getId() != 0 )
+            if ( nodeIds[i] != o.nodeIds[i] )
             {
-                return Long.compare( a.nodes.get( i ).getId(), b.nodes.get( i ).getId() );
+                return Long.compare( nodeIds[i], o.nodeIds[i] );
             }
         }
         return 0;
     }
 
-    private int comparePathToPath( Path a, Path b )
+    public long getNodeId( int index )
     {
-        if ( a == b )
-        {
-            return 0;
-        }
-        if ( a.length != b.length )
+        return nodeIds[index];
+    }
+
+    /**
+     * @return a new list holding the nodes of the path.
+     */
+    public List<Node> getNodes()
+    {
+        List<Node> nodes = new ArrayList<>( nodeIds.length );
+        for ( long id : nodeIds )
         {
-            return a.length - b.length;
+            nodes.add( new Node( id ) );
         }
-        for ( int i = 0; i < a.length; i++ )
+        return nodes;
+    }
+
+    static long[] toIds( List<Node> nodes )
+    {
+        long[] ids = new long[nodes.size()];
+        int i = 0;
+        for ( Node node : nodes )
         {
-            if ( a.nodes.get( i ).getId() - b.nodes.get( i ).getId() != 0 )
-            {
-                return Long.compare( a.nodes.get( i ).getId(), b.nodes.get( i ).getId() );
-            }
+            ids[i++] = node.getId();
         }
-        return 0;
+        return ids;
+    }
+
+    /**
+     * @return the path length followed by the node ids, the form in which paths are stored in the index.
+     */
+    public long[] toKey()
+    {
+        long[] key = new long[nodeIds.length + 1];
+        key[0] = length;
+        System.arraycopy( nodeIds, 0, key, 1, nodeIds.length );
+        return key;
     }
 }
@@ -4,22 +4,33 @@
  * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
  * You may use, distribute and modify this code under the terms of the GPLv3 license.
  */
-
 package com.pathdb.pathDB;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
 
 
 public class Path extends AbstractPath
 {
-    public final int length;
-    public List<Node> nodes;
-
     public Path( List<Node> nodes )
     {
-        this.length = nodes.size();
-        this.nodes = nodes;
+        this( toIds( nodes ) );
+    }
+
+    /**
+     * @param nodeIds the ids of the nodes on the path. The array is not copied.
+     */
+    public Path( long... nodeIds )
+    {
+        super( nodeIds.length, nodeIds );
+    }
+
+    /**
+     * Creates the path stored in the index under the given key, the path length followed by the node ids.
+     */
+    public static Path fromKey( long[] key )
+    {
+        return new Path( Arrays.copyOfRange( key, 1, 1 + (int) key[0] ) );
     }
 
     @Override
@@ -34,21 +45,20 @@ public class Path extends AbstractPath
             return false;
         }
         Path path = (Path) o;
-        return length == path.length && Objects.equals( nodes, path.nodes );
+        return length == path.length && Arrays.equals( nodeIds, path.nodeIds );
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash( length, nodes );
+        return 31 * length + Arrays.hashCode( nodeIds );
     }
 
     @Override
     public String toString()
     {
-        return "Path{" + "length=" + length + ", nodes=" + nodes + "}\n";
+        return "Path{" + "length=" + length + ", nodes=" + Arrays.toString( nodeIds ) + "}\n";
     }
 
 
 }
-
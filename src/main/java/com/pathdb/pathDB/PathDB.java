@@ -10,9 +10,14 @@ package com.pathdb.pathDB;
 import com.pathdb.pathIndex.tree.IndexTree;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 public class PathDB
 {
+    public static final int INSERT_BATCH_SIZE = 4096;
+
     private final IndexTree pathIndex;
 
     public PathDB( IndexTree pathIndex )
@@ -20,13 +25,68 @@ public class PathDB
         this.pathIndex = pathIndex;
     }
 
-    public Iterable<Path> getPaths( PathPrefix pathPrefix ) throws IOException
+    /**
+     * @return the paths matching the prefix. The index is only read while the result is iterated.
+     */
+    public PathResults getPaths( PathPrefix pathPrefix ) throws IOException
+    {
+        return new PathResults( pathIndex, pathPrefix );
+    }
+
+    public Stream<Path> streamPaths( PathPrefix pathPrefix ) throws IOException
     {
-        return pathIndex.find( pathPrefix );
+        return getPaths( pathPrefix ).stream();
     }
 
+    /**
+     * @throws IllegalArgumentException if the path does not have the length of the paths in the index.
+     */
     public void insert( Path path )
     {
+        pathIndex.insert( keyOf( path ) );
+    }
+
+    /**
+     * Inserts the paths in batches of {@link #INSERT_BATCH_SIZE}. Each batch is sorted before it is inserted, so
+     * paths which end up in the same leaf are inserted right after each other.
+     *
+     * @throws IllegalArgumentException if a path does not have the length of the paths in the index. The batches
+     * before the one holding that path are inserted, the rest are not.
+     * @throws java.io.UncheckedIOException if a page could not be read or written. The batch being inserted may then
+     * be inserted in part.
+     */
+    public void insertAll( Iterable<Path> paths )
+    {
+        List<long[]> batch = new ArrayList<>( INSERT_BATCH_SIZE );
+        for ( Path path : paths )
+        {
+            batch.add( keyOf( path ) );
+            if ( batch.size() == INSERT_BATCH_SIZE )
+            {
+                insertBatch( batch );
+            }
+        }
+        insertBatch( batch );
+    }
+
+    private long[] keyOf( Path path )
+    {
+        long[] key = path.toKey();
+        if ( key.length != pathIndex.keySize )
+        {
+            throw new IllegalArgumentException( "The index holds paths of length " + (pathIndex.keySize - 1) +
+                    ", got a path of length " + (key.length - 1) + "." );
+        }
+        return key;
+    }
 
+    private void insertBatch( List<long[]> batch )
+    {
+        if ( !batch.isEmpty() )
+        {
+            batch.sort( IndexTree.comparator );
+            pathIndex.insertSorted( batch );
+            batch.clear();
+        }
     }
 }
@@ -4,24 +4,28 @@
  * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
  * You may use, distribute and modify this code under the terms of the GPLv3 license.
  */
-
 package com.pathdb.pathDB;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
 
 public class PathPrefix extends AbstractPath
 {
-    public final int length;
-    public final List<Node> nodes;
     public final int prefixLength;
 
 
     public PathPrefix( int pathLength, List<Node> nodes )
     {
-        this.length = pathLength;
-        this.nodes = nodes;
-        this.prefixLength = nodes.size();
+        this( pathLength, toIds( nodes ) );
+    }
+
+    /**
+     * @param nodeIds the ids of the first nodes of the paths to match. The array is not copied.
+     */
+    public PathPrefix( int pathLength, long... nodeIds )
+    {
+        super( pathLength, nodeIds );
+        this.prefixLength = nodeIds.length;
     }
 
     @Override
@@ -36,18 +40,18 @@ public class PathPrefix extends AbstractPath
             return false;
         }
         PathPrefix that = (PathPrefix) o;
-        return length == that.length && Objects.equals( nodes, that.nodes );
+        return length == that.length && Arrays.equals( nodeIds, that.nodeIds );
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hash( length, nodes );
+        return 31 * length + Arrays.hashCode( nodeIds );
     }
 
     @Override
     public String toString()
     {
-        return "PathPrefix{" + "length=" + length + ", nodes=" + nodes + '}';
+        return "PathPrefix{" + "length=" + length + ", nodes=" + Arrays.toString( nodeIds ) + '}';
     }
 }
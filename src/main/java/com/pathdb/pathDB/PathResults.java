@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pathDB;
+
+import com.pathdb.pathIndex.tree.IndexTree;
+import com.pathdb.pathIndex.tree.PageProxyCursor;
+import com.pathdb.pathIndex.tree.SearchCursor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The paths in an index matching a prefix. Nothing is read until the results are iterated. Every iterator searches
+ * the index once, then walks the leaves through their sibling links, and only creates a {@link Path} when it is asked
+ * for the next one.
+ */
+public class PathResults implements Iterable<Path>
+{
+    private final IndexTree index;
+    private final PathPrefix prefix;
+
+    PathResults( IndexTree index, PathPrefix prefix )
+    {
+        this.index = index;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        try
+        {
+            PageProxyCursor cursor = index.disk.getCursor( index.rootNodeId );
+            return new PathIterator( cursor, index.find( cursor, prefix.toKey() ), index.keySize );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    @Override
+    public Spliterator<Path> spliterator()
+    {
+        return Spliterators.spliteratorUnknownSize( iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL );
+    }
+
+    public Stream<Path> stream()
+    {
+        return StreamSupport.stream( spliterator(), false );
+    }
+
+    private static class PathIterator implements Iterator<Path>
+    {
+        private final PageProxyCursor cursor;
+        private final SearchCursor results;
+        private final long[] key;
+
+        PathIterator( PageProxyCursor cursor, SearchCursor results, int keySize )
+        {
+            this.cursor = cursor;
+            this.results = results;
+            this.key = new long[keySize];
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            try
+            {
+                return results != null && results.hasNext( cursor );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        }
+
+        @Override
+        public Path next()
+        {
+            try
+            {
+                if ( results == null || !results.next( cursor, key ) )
+                {
+                    throw new NoSuchElementException();
+                }
+                return Path.fromKey( key );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        }
+    }
+}
@@ -8,15 +8,14 @@
 package com.pathdb.pathIndex.tree;
 
 
-import com.pathdb.storage.DiskCache;
 import com.pathdb.storage.PersistedPageHeader;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class IndexDeletion
 {
-    public static PageProxyCursor cursor;
-    public static DiskCache disk;
     public IndexTree tree;
 
     public IndexDeletion( IndexTree tree )
@@ -43,10 +42,12 @@ public class IndexDeletion
                 result = remove( cursor, key );
                 if ( result != null )
                 {
+                    tree.releaseNode( result.removedNodeId );
                     cursor.goToPage( id );
                     result = handleRemovedChildren( cursor, id, result );
                 }
             }
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -55,6 +56,57 @@ public class IndexDeletion
         return result;
     }
 
+    /**
+     * Removes the key if its leaf keeps at least one key, holding the structure lock of the tree shared and only the
+     * latch of the leaf exclusively. Nothing is changed if the leaf would become empty and have to be removed.
+     *
+     * @return false if the key was not removed, and has to be removed with the structure lock held exclusively.
+     * @throws UncheckedIOException if a page could not be read or written.
+     */
+    public boolean removeFromLeaf( long[] key )
+    {
+        tree.structureLock.readLock().lock();
+        try
+        {
+            PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+            while ( !PersistedPageHeader.isLeafNode( cursor ) )
+            {
+                int index = IndexSearch.search( cursor, key )[0];
+                cursor.goToPage( tree.getChildIdAtIndex( cursor, index ) );
+            }
+            long leafId = cursor.getCurrentPageId();
+            ReentrantLock latch = tree.leafLatches.latchFor( leafId );
+            latch.lock();
+            try
+            {
+                // Read the leaf again now that no one else can change it.
+                cursor.goToPage( leafId );
+                if ( PersistedPageHeader.getNumberOfKeys( cursor ) <= 1 )
+                {
+                    return false;
+                }
+                long version = IndexTree.beginChange( cursor );
+                int[] searchResult = IndexSearch.search( cursor, key );
+                removeKeyAtOffset( cursor, searchResult[1], key );
+                IndexTree.endChange( cursor, version );
+                cursor.flush();
+                return true;
+            }
+            finally
+            {
+                latch.unlock();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not remove the key from its leaf", e );
+        }
+        finally
+        {
+            tree.structureLock.readLock().unlock();
+        }
+    }
+
     private RemoveResultProxy remove( PageProxyCursor cursor, long[] key ) throws IOException
     {
         RemoveResultProxy result = null;
@@ -71,6 +123,7 @@ public class IndexDeletion
             result = remove( cursor, key );
             if ( result != null )
             {
+                tree.releaseNode( result.removedNodeId );
                 cursor.goToPage( id );
                 result = handleRemovedChildren( cursor, id, result );
             }
@@ -149,7 +202,7 @@ public class IndexDeletion
         {
             PageProxyCursor cursor = tree.disk.getCursor( nodeId );
             result = removeKeyFromLeafNode( cursor, nodeId, key );
-
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -11,15 +11,15 @@ import com.pathdb.storage.DiskCache;
 import com.pathdb.storage.PersistedPageHeader;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class IndexInsertion
 {
 
-    public static PageProxyCursor cursor;
-    public static DiskCache disk;
     public IndexTree tree;
 
     public IndexInsertion( IndexTree tree )
@@ -51,6 +51,7 @@ public class IndexInsertion
                     result = addKeyAndChildToInternalNode( cursor, id, result.primkey, result.right );
                 }
             }
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -60,6 +61,128 @@ public class IndexInsertion
         return result;
     }
 
+    /**
+     * Inserts the key if its leaf has space for it, holding the structure lock of the tree shared and only the latch of
+     * the leaf exclusively. Nothing is changed if the leaf would have to split.
+     *
+     * @return false if the key was not inserted, and has to be inserted with the structure lock held exclusively.
+     * @throws UncheckedIOException if a page could not be read or written.
+     */
+    public boolean insertIntoLeaf( long[] key )
+    {
+        tree.structureLock.readLock().lock();
+        try
+        {
+            PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+            descendToLeaf( cursor, key );
+            long leafId = cursor.getCurrentPageId();
+            ReentrantLock latch = tree.leafLatches.latchFor( leafId );
+            latch.lock();
+            try
+            {
+                // Read the leaf again now that no one else can change it.
+                cursor.goToPage( leafId );
+                if ( !cursor.leafNodeContainsSpaceForNewKey( key ) )
+                {
+                    return false;
+                }
+                long version = IndexTree.beginChange( cursor );
+                int[] searchResult = IndexSearch.search( cursor, key );
+                insertKeyAtIndex( cursor, searchResult[1], key );
+                IndexTree.endChange( cursor, version );
+                cursor.flush();
+                return true;
+            }
+            finally
+            {
+                latch.unlock();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not insert the key into its leaf", e );
+        }
+        finally
+        {
+            tree.structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts keys which are given in ascending order. The leaf of the previous key is remembered together with the
+     * separator key bounding it from above, so as long as the next key stays below that separator and the leaf has
+     * space, the key goes straight into the leaf without descending from the root again. One cursor is used for the
+     * whole batch, so the leaf is also only decompressed and written once.
+     *
+     * @throws UncheckedIOException if a page could not be read or written.
+     */
+    public void insertSorted( Iterable<long[]> sortedKeys )
+    {
+        try
+        {
+            PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+            long leafId = -1;
+            long[] upperBound = null;
+            for ( long[] key : sortedKeys )
+            {
+                if ( leafId == -1 || (upperBound != null && IndexTree.comparator.compare( key, upperBound ) >= 0) )
+                {
+                    cursor.goToPage( tree.rootNodeId );
+                    upperBound = descendToLeaf( cursor, key );
+                    leafId = cursor.getCurrentPageId();
+                }
+                cursor.goToPage( leafId );
+                if ( cursor.leafNodeContainsSpaceForNewKey( key ) )
+                {
+                    int[] searchResult = IndexSearch.search( cursor, key );
+                    insertKeyAtIndex( cursor, searchResult[1], key );
+                }
+                else
+                {
+                    // The leaf splits, let the regular insert handle it and find the leaf again for the next key.
+                    cursor.goToPage( tree.rootNodeId );
+                    SplitResult result = insert( cursor, key );
+                    if ( result != null )
+                    {
+                        cursor.flush();
+                        tree.newRoot( result.left, result.right, result.primkey );
+                    }
+                    leafId = -1;
+                }
+            }
+            cursor.flush();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not insert the sorted keys", e );
+        }
+    }
+
+    /**
+     * Moves the cursor from the current node down to the leaf the key belongs in.
+     *
+     * @return the smallest separator key on the way down which is larger than the key, or null if there is none.
+     */
+    private long[] descendToLeaf( PageProxyCursor cursor, long[] key ) throws IOException
+    {
+        long[] upperBound = null;
+        while ( !PersistedPageHeader.isLeafNode( cursor ) )
+        {
+            int[] searchResult = IndexSearch.search( cursor, key );
+            int keyLength = PersistedPageHeader.getKeyLength( cursor );
+            if ( searchResult[0] < PersistedPageHeader.getNumberOfKeys( cursor ) )
+            {
+                upperBound = new long[keyLength];
+                for ( int i = 0; i < keyLength; i++ )
+                {
+                    upperBound[i] = cursor.getLong( searchResult[1] + (i * 8) );
+                }
+            }
+            cursor.goToPage( tree.getChildIdAtIndex( cursor, searchResult[0] ) );
+        }
+        return upperBound;
+    }
+
     private SplitResult insert( PageProxyCursor cursor, long[] key ) throws IOException
     {
         SplitResult result = null;
@@ -90,6 +213,7 @@ public class IndexInsertion
         {
             PageProxyCursor cursor = tree.disk.getCursor( nodeId );
             result = addKeyAndChildToInternalNode( cursor, nodeId, key, child );
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -98,13 +222,13 @@ public class IndexInsertion
         return result;
     }
 
-    public static SplitResult addKeyAndChildToInternalNode( PageProxyCursor cursor, long nodeId, long[] key,
+    public SplitResult addKeyAndChildToInternalNode( PageProxyCursor cursor, long nodeId, long[] key,
             long child ) throws IOException
     {
         SplitResult result = null;
         if ( !cursor.internalNodeContainsSpaceForNewKeyAndChild( key ) )
         {
-            long newInternalNodeId = IndexTree.acquireNewInternalNode( cursor );
+            long newInternalNodeId = tree.acquireNewInternalNode( cursor );
             result = new SplitResult();
             result.left = nodeId;
             result.right = newInternalNodeId;
@@ -131,7 +255,7 @@ public class IndexInsertion
         {
             PageProxyCursor cursor = tree.disk.getCursor( nodeId );
             result = addKeyToLeafNode( cursor, key );
-
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -140,14 +264,14 @@ public class IndexInsertion
         return result;
     }
 
-    private static SplitResult addKeyToLeafNode( PageProxyCursor cursor, long[] key ) throws IOException
+    private SplitResult addKeyToLeafNode( PageProxyCursor cursor, long[] key ) throws IOException
     {
         SplitResult result = null;
         if ( !cursor.leafNodeContainsSpaceForNewKey( key ) )
         {
             result = new SplitResult();
             result.left = cursor.getCurrentPageId();
-            long newLeafNodeId = IndexTree.acquireNewLeafNode( cursor );
+            long newLeafNodeId = tree.acquireNewLeafNode( cursor );
             result.right = newLeafNodeId;
             IndexTree.updateSiblingAndFollowingIdsInsertion( cursor, result.left, newLeafNodeId );
             result.primkey = insertAndBalanceKeysBetweenLeafNodes( cursor, result.left, result.right, key );
@@ -239,21 +363,17 @@ public class IndexInsertion
         System.arraycopy( children, 0, childrenA, 0, childrenA.length );
         System.arraycopy( children, childrenA.length, childrenB, 0, childrenB.length );
 
-        cursor.deferWriting();
         PersistedPageHeader.setNumberOfKeys( cursor, keysInclInsert / 2 );
         cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
         cursor.putBytes( childrenA );
         cursor.putBytes( keysA );
-        cursor.resumeWriting();
 
         cursor.goToPage( emptyNode );
-        cursor.deferWriting();
         PersistedPageHeader.setNumberOfKeys( cursor, originalNumberOfKeys / 2 );
         PersistedPageHeader.setKeyLength( cursor, keyLength );
         cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
         cursor.putBytes( childrenB );
         cursor.putBytes( keysB );
-        cursor.resumeWriting();
 
         return returnedKey;
     }
@@ -340,20 +460,16 @@ public class IndexInsertion
         cursor.setOffset( offset );
         cursor.getBytes( tmp_bytes );
         cursor.setOffset( offset );
-        cursor.deferWriting();
         for ( long item : key )
         {
             cursor.putLong( item );
         }
 
         cursor.putBytes( tmp_bytes );
-
-        cursor.resumeWriting();
     }
 
     private static void insertChildAtIndex( PageProxyCursor cursor, int index, long child )
     {
-        cursor.deferWriting();
         int childInsertionOffset = PersistedPageHeader.NODE_HEADER_LENGTH + (index * Long.BYTES);
         byte[] shiftDownBytes = new byte[DiskCache.PAGE_SIZE - childInsertionOffset - Long.BYTES];
         cursor.setOffset( childInsertionOffset );
@@ -361,7 +477,6 @@ public class IndexInsertion
         cursor.setOffset( childInsertionOffset );
         cursor.putLong( child );
         cursor.putBytes( shiftDownBytes );
-        cursor.resumeWriting();
     }
 
     private static byte[] insertKeyAtIndex( byte[] keys, long[] newKey, int index, long[] returnedKey )
@@ -384,7 +499,8 @@ public class IndexInsertion
             updatedKeysLB.put( keyB.get() );
         }
 
-        int middle = updatedKeysLB.capacity() / 2;
+        // The first key of the second half, which must start on a key even when the number of keys is odd.
+        int middle = (updatedKeysLB.capacity() / newKey.length / 2) * newKey.length;
         for ( int i = 0; i < returnedKey.length; i++ )
         {
             returnedKey[i] = updatedKeysLB.get( middle + i );
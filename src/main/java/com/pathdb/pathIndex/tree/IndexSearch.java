@@ -15,7 +15,8 @@ import java.io.IOException;
 
 public class IndexSearch
 {
-    public PageProxyCursor cursor;
+    private static final int LINEAR_SEARCH_THRESHOLD = 8;
+
     public IndexTree tree;
 
     public IndexSearch( IndexTree tree )
@@ -23,63 +24,118 @@ public class IndexSearch
         this.tree = tree;
     }
 
-    public SearchCursor find( PathPrefix key )
+    public SearchCursor find( PathPrefix prefix ) throws IOException
     {
-        long[] entry = null;
-        SearchCursor resultsCursor = null;
-        int[] searchResult;
-        try
+        return findOptimistically( tree.disk.getCursor( tree.rootNodeId ), prefix.toKey() );
+    }
+
+    public SearchCursor findWithCursor( PageProxyCursor cursor, long[] key ) throws IOException
+    {
+        return findOptimistically( cursor, key );
+    }
+
+    /**
+     * Finds the first key matching the search key without taking any lock, starting over until a search gets through
+     * without a writer changing the tree under it.
+     */
+    SearchCursor findOptimistically( PageProxyCursor cursor, long[] key ) throws IOException
+    {
+        while ( true )
         {
-            PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
-            searchResult = find( cursor, key );
-            long currentNode = cursor.getCurrentPageId();
-            if ( searchResult[0] == 0 )
+            long stamp = tree.structureStamps.tryOptimisticRead();
+            if ( stamp == 0 )
+            {
+                // A node is being split or removed.
+                Thread.yield();
+                continue;
+            }
+            SearchCursor resultsCursor;
+            try
+            {
+                resultsCursor = tryFind( cursor, key, stamp );
+            }
+            catch ( RuntimeException e )
             {
-                int[] altResult = moveCursorBackIfPreviousNodeContainsValidKeys( cursor, key );
-                if ( currentNode != cursor.getCurrentPageId() )
+                // A node read while it was restructured can hold anything, only trust the failure if it was not.
+                if ( tree.structureStamps.validate( stamp ) )
                 {
-                    searchResult = altResult;
+                    throw e;
                 }
+                resultsCursor = null;
+            }
+            if ( resultsCursor != null )
+            {
+                return resultsCursor;
             }
-            resultsCursor =
-                    new SearchCursor( cursor.getCurrentPageId(), PersistedPageHeader.getSiblingID( cursor ), searchResult[0],
-                            key, PersistedPageHeader.getKeyLength( cursor ), PersistedPageHeader.getNumberOfKeys( cursor ) );
-        }
-        catch ( IOException e )
-        {
-            e.printStackTrace();
         }
-        return resultsCursor;
     }
 
-    public SearchCursor findWithCursor( PageProxyCursor cursor, long[] key )
+    /**
+     * Internal nodes only change while the structure lock is held exclusively, so they are checked against the stamp.
+     * Leaves can also change under their latch alone, so the leaf the search ends in is checked against its version.
+     *
+     * @return null if the search has to start over.
+     */
+    private SearchCursor tryFind( PageProxyCursor cursor, long[] key, long stamp ) throws IOException
     {
-        SearchCursor resultsCursor = null;
-        int[] searchResult;
-        try
+        cursor.goToPage( tree.rootNodeId );
+        while ( !PersistedPageHeader.isLeafNode( cursor ) )
         {
-            cursor.goToPage( tree.rootNodeId );
-            searchResult = find( cursor, key );
+            long child = tree.getChildIdAtIndex( cursor, search( cursor, key )[0] );
+            if ( !tree.structureStamps.validate( stamp ) )
+            {
+                return null;
+            }
+            cursor.goToPage( child );
+        }
+        long version = IndexTree.getVersion( cursor );
+        int[] searchResult = search( cursor, key );
+        long previousNode = PersistedPageHeader.getPrecedingID( cursor );
+        if ( searchResult[0] == 0 && previousNode != -1 )
+        {
+            // Matching keys may start in the previous leaf.
             long currentNode = cursor.getCurrentPageId();
-            if ( searchResult[0] == 0 )
+            cursor.goToPage( previousNode );
+            long previousVersion = IndexTree.getVersion( cursor );
+            int[] altResult = search( cursor, key );
+            int keysInPrevious = PersistedPageHeader.getNumberOfKeys( cursor );
+            if ( !isUnchangedSince( cursor, previousVersion, stamp ) )
             {
-                int[] altResult = moveCursorBackIfPreviousNodeContainsValidKeys( cursor, key );
-                if ( currentNode != cursor.getCurrentPageId() )
-                {
-                    searchResult = altResult;
-                }
+                return null;
+            }
+            if ( altResult[0] == keysInPrevious )
+            {
+                cursor.goToPage( currentNode );
+            }
+            else
+            {
+                searchResult = altResult;
+                version = previousVersion;
             }
-            resultsCursor =
-                    new SearchCursor( cursor.getCurrentPageId(), PersistedPageHeader.getSiblingID( cursor ), searchResult[0],
-                            key, PersistedPageHeader.getKeyLength( cursor ), PersistedPageHeader.getNumberOfKeys( cursor ) );
         }
-        catch ( IOException e )
+        SearchCursor resultsCursor =
+                new SearchCursor( cursor.getCurrentPageId(), PersistedPageHeader.getSiblingID( cursor ), searchResult[0],
+                        key, PersistedPageHeader.getKeyLength( cursor ), PersistedPageHeader.getNumberOfKeys( cursor ),
+                        this, stamp, version );
+        if ( !isUnchangedSince( cursor, version, stamp ) )
         {
-            e.printStackTrace();
+            return null;
         }
         return resultsCursor;
     }
 
+    /**
+     * Checks that the leaf under the cursor was not being changed when its version was read, and has not changed since.
+     * The cursor reads a copy of the leaf, so the version is compared to the one other cursors see, which changes
+     * whenever a writer writes the leaf. Validating the stamp first also keeps the reads of the leaf from moving past
+     * the second read of its version.
+     */
+    boolean isUnchangedSince( PageProxyCursor cursor, long version, long stamp ) throws IOException
+    {
+        return (version & 1) == 0 && tree.structureStamps.validate( stamp ) &&
+               cursor.readPublishedVersion() == version;
+    }
+
     public int[] find( PageProxyCursor cursor, long[] key ) throws IOException
     {
         int[] searchResult;
@@ -128,82 +184,85 @@ public class IndexSearch
 
     private static int[] searchInternalNodeSameLengthKeys( PageProxyCursor cursor, long[] key )
     {
-        int index = -1;
-        int offset = -1;
         int numberOfKeys = PersistedPageHeader.getNumberOfKeys( cursor );
         if ( numberOfKeys == 0 )
         {
             return new int[]{0, PersistedPageHeader.NODE_HEADER_LENGTH};
         }
         int keyLength = PersistedPageHeader.getKeyLength( cursor );
-        cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8) ); //header + children
-        long[] currKey = new long[keyLength];
-        for ( int i = 0; i < numberOfKeys; i++ )
-        {
-            for ( int j = 0; j < keyLength; j++ )
-            {
-                currKey[j] = cursor.getLong();
-            }
-            if ( IndexTree.comparator.prefixCompare( key, currKey ) < 0 )
-            {
-                index = i;
-                offset = cursor.getOffset() - (8 * keyLength);
-                break;
-            }
-        }
-        if ( index == -1 )
-        { //Didn't find anything
-            index = numberOfKeys;
-            offset = cursor.getOffset();
-        }
-        return new int[]{index, offset};
+        int keysStart = PersistedPageHeader.NODE_HEADER_LENGTH + ((numberOfKeys + 1) * 8); //header + children
+        return searchSameLengthKeys( cursor, key, keysStart, numberOfKeys, keyLength, false );
     }
 
 
     private static int[] searchLeafNodeSameLengthKeys( PageProxyCursor cursor, long[] key )
     {
-        int index = -1;
-        int offset = -1;
         int numberOfKeys = cursor.getInt( PersistedPageHeader.BYTE_POSITION_KEY_COUNT );
         int keyLength = PersistedPageHeader.getKeyLength( cursor );
-        cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-        long[] currKey = new long[keyLength];
-        for ( int i = 0; i < numberOfKeys; i++ )
+        return searchSameLengthKeys( cursor, key, PersistedPageHeader.NODE_HEADER_LENGTH, numberOfKeys, keyLength,
+                true );
+    }
+
+    /**
+     * Finds the first key in the node which is greater than the search key, or greater than or equal to it when
+     * matchEqual is set. The keys are compared in place, so no key is copied out of the node. The range is halved
+     * until at most {@link #LINEAR_SEARCH_THRESHOLD} keys are left, which are then scanned.
+     *
+     * @return the index of the found key and its offset. If there is no such key, the number of keys and the offset
+     * right after the last key.
+     */
+    private static int[] searchSameLengthKeys( PageProxyCursor cursor, long[] key, int keysStart, int numberOfKeys,
+            int keyLength, boolean matchEqual )
+    {
+        int keySize = keyLength * 8;
+        int low = 0;
+        int high = numberOfKeys;
+        while ( high - low > LINEAR_SEARCH_THRESHOLD )
         {
-            for ( int j = 0; j < keyLength; j++ )
+            int middle = (low + high) >>> 1;
+            if ( isAtOrAfterSearchKey( cursor, keysStart + middle * keySize, key, keyLength, matchEqual ) )
             {
-                currKey[j] = cursor.getLong();
+                high = middle;
             }
-            if ( IndexTree.comparator.prefixCompare( key, currKey ) <= 0 )
+            else
             {
-                index = i;
-                offset = cursor.getOffset() - (8 * keyLength);
-                break;
+                low = middle + 1;
             }
         }
-        if ( index == -1 )
-        { //Didn't find anything
-            index = numberOfKeys;
-            offset = cursor.getOffset();
+        int index = low;
+        while ( index < high && !isAtOrAfterSearchKey( cursor, keysStart + index * keySize, key, keyLength,
+                matchEqual ) )
+        {
+            index++;
         }
+        int offset = keysStart + index * keySize;
+        // Leave the cursor where the linear scan used to leave it.
+        cursor.setOffset( index < numberOfKeys ? offset + keySize : offset );
         return new int[]{index, offset};
     }
 
+    private static boolean isAtOrAfterSearchKey( PageProxyCursor cursor, int offset, long[] key, int keyLength,
+            boolean matchEqual )
+    {
+        int comparison = compareToKeyAt( cursor, offset, key, keyLength );
+        return matchEqual ? comparison <= 0 : comparison < 0;
+    }
 
-    private static int[] moveCursorBackIfPreviousNodeContainsValidKeys( PageProxyCursor cursor, long[] key )
-            throws IOException
+    /**
+     * Compares the search key to the key stored at the given offset, the same way as
+     * {@link KeyImpl#prefixCompare(long[], long[])}.
+     */
+    static int compareToKeyAt( PageProxyCursor cursor, int offset, long[] key, int keyLength )
     {
-        long currentNode = cursor.getCurrentPageId();
-        long previousNode = PersistedPageHeader.getPrecedingID( cursor );
-        if ( previousNode != -1 )
-        {
-            cursor.goToPage( previousNode );
-        }
-        int[] result = search( cursor, key );
-        if ( result[0] == PersistedPageHeader.getNumberOfKeys( cursor ) )
+        int length = Math.min( key.length, keyLength );
+        for ( int i = 0; i < length; i++ )
         {
-            cursor.goToPage( currentNode );
+            long stored = cursor.getLong( offset + i * 8 );
+            if ( key[i] != stored )
+            {
+                return Long.compare( key[i], stored );
+            }
         }
-        return result;
+        return key.length - keyLength;
     }
 }
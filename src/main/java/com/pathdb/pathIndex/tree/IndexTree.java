@@ -11,28 +11,50 @@ import com.pathdb.pathDB.PathPrefix;
 import com.pathdb.storage.DiskCache;
 import com.pathdb.storage.PersistedPageHeader;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.neo4j.io.pagecache.PagedFile;
 
-public class IndexTree
+/**
+ * A B+ tree of fixed length keys. Any number of threads can search the tree at the same time, as every search reads
+ * through a cursor of its own, either one it gets from the disk or one passed in by the caller.
+ * <p>
+ * Inserts and removes can run at the same time as well. They first descend optimistically: with the structure lock
+ * held shared, so no node splits or disappears on the way down, and only the latch of the leaf held exclusively while
+ * it is changed. If the leaf would have to split or be removed, the latch and the shared lock are let go, and the
+ * change is made again with the structure lock held exclusively. Those changes run inside a change of the page file
+ * and are committed once they are done, so over a {@link com.pathdb.storage.LoggedPageFile} a crash never leaves half
+ * a split behind.
+ * <p>
+ * Searches take no lock at all. They validate the stamp of the structure lock after every internal node, and the
+ * version of the leaf they end up in, and start over from the root if a writer got in the way.
+ */
+public class IndexTree implements Closeable
 {
 
     public PagedFile pagedFile;
     public DiskCache disk;
     public static KeyImpl comparator = new KeyImpl();
-    public long rootNodeId = 0;
+    public volatile long rootNodeId = 0;
     public int keySize;
-    public PageProxyCursor cursor;
     public IndexSearch nodeSearch;
     public IndexInsertion nodeInsertion;
     public IndexDeletion nodeDeletion;
+    public final TreeNodeIDManager nodeIds;
+    final StampedLock structureStamps = new StampedLock();
+    final ReadWriteLock structureLock = structureStamps.asReadWriteLock();
+    final PageLatches leafLatches = new PageLatches();
 
-    public IndexTree( int keySize, long rootNodeId, DiskCache disk )
+    public IndexTree( int keySize, long rootNodeId, DiskCache disk ) throws IOException
     {
         this.rootNodeId = rootNodeId;
         pagedFile = disk.pagedFile;
         this.disk = disk;
+        this.nodeIds = TreeNodeIDManager.open( disk.pageCacheFile, pagedFile.getLastPageId() + 1 );
         this.keySize = keySize;
         this.nodeSearch = new IndexSearch( this );
         this.nodeInsertion = new IndexInsertion( this );
@@ -43,6 +65,7 @@ public class IndexTree
     {
         pagedFile = disk.pagedFile;
         this.disk = disk;
+        this.nodeIds = TreeNodeIDManager.open( disk.pageCacheFile, pagedFile.getLastPageId() + 1 );
         this.keySize = keySize;
         rootNodeId = acquireNewLeafNode();
         this.nodeSearch = new IndexSearch( this );
@@ -67,6 +90,7 @@ public class IndexTree
             }
             PersistedPageHeader.setKeyLength( cursor, key.length );
             PersistedPageHeader.setNumberOfKeys( cursor, 1 );
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -75,11 +99,17 @@ public class IndexTree
     }
 
 
+    /**
+     * Searches with a new cursor, so it can be called from any thread.
+     */
     public SearchCursor find( PathPrefix path) throws IOException
     {
         return nodeSearch.find( path );
     }
 
+    /**
+     * Searches with the given cursor, which must not be used by another thread at the same time.
+     */
     public SearchCursor find( PageProxyCursor cursor, long[] key ) throws IOException
     {
         return nodeSearch.findWithCursor( cursor, key );
@@ -87,17 +117,122 @@ public class IndexTree
 
     public void insert( long[] key )
     {
-        SplitResult result = nodeInsertion.insert( key );
+        if ( nodeInsertion.insertIntoLeaf( key ) )
+        {
+            return;
+        }
+        PageProxyCursor cursor = beginStructureChange();
+        try
+        {
+            SplitResult result = nodeInsertion.insert( key );
 
-        if ( result != null )
+            if ( result != null )
+            {
+                newRoot( result.left, result.right, result.primkey );
+            }
+        }
+        finally
         {
-            newRoot( result.left, result.right, result.primkey );
+            endStructureChange( cursor );
         }
+        commit( cursor );
+    }
+
+    /**
+     * Inserts many keys at once. The keys must be sorted with {@link #comparator}.
+     */
+    public void insertSorted( Iterable<long[]> sortedKeys )
+    {
+        PageProxyCursor cursor = beginStructureChange();
+        try
+        {
+            nodeInsertion.insertSorted( sortedKeys );
+        }
+        finally
+        {
+            endStructureChange( cursor );
+        }
+        commit( cursor );
     }
 
     public void remove( long[] key )
     {
-        nodeDeletion.remove( key );
+        if ( nodeDeletion.removeFromLeaf( key ) )
+        {
+            return;
+        }
+        PageProxyCursor cursor = beginStructureChange();
+        try
+        {
+            nodeDeletion.remove( key );
+        }
+        finally
+        {
+            endStructureChange( cursor );
+        }
+        commit( cursor );
+    }
+
+    /**
+     * Takes the structure lock exclusively and starts a change of the page file, so a commit of another thread never
+     * holds only some of the nodes a split or merge writes.
+     *
+     * @return the cursor the change was started with, to hand to {@link #endStructureChange(PageProxyCursor)}.
+     * @throws UncheckedIOException if the root could not be read.
+     */
+    private PageProxyCursor beginStructureChange()
+    {
+        structureLock.writeLock().lock();
+        boolean started = false;
+        try
+        {
+            PageProxyCursor cursor = disk.getCursor( rootNodeId );
+            cursor.beginChange();
+            started = true;
+            return cursor;
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not start the change", e );
+        }
+        finally
+        {
+            if ( !started )
+            {
+                structureLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void endStructureChange( PageProxyCursor cursor )
+    {
+        try
+        {
+            cursor.endChange();
+        }
+        finally
+        {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the change durable once the structure lock is let go, so other changes run while the log is forced and
+     * the commits of several threads are forced together. Keys inserted or removed within a single leaf become
+     * durable with the next commit or checkpoint.
+     *
+     * @throws UncheckedIOException if the change could not be committed.
+     */
+    private static void commit( PageProxyCursor cursor )
+    {
+        try
+        {
+            cursor.commit();
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not commit the change", e );
+        }
     }
 
 
@@ -107,7 +242,7 @@ public class IndexTree
         {
             PageProxyCursor cursor = disk.getCursor( rootNodeId );
             PersistedPageHeader.setPrecedingId( cursor, newPrecedingId );
-
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -121,6 +256,7 @@ public class IndexTree
         {
             PageProxyCursor cursor = disk.getCursor( rootNodeId );
             PersistedPageHeader.setFollowingID( cursor, newFollowingId );
+            cursor.flush();
         }
         catch ( IOException e )
         {
@@ -128,6 +264,30 @@ public class IndexTree
         }
     }
 
+    public static long getVersion( PageProxyCursor cursor )
+    {
+        return cursor.getLong( PersistedPageHeader.BYTE_POSITION_VERSION );
+    }
+
+    /**
+     * Makes the version of the node under the cursor odd, so optimistic readers know it is being changed.
+     *
+     * @return the version before the change, to hand to {@link #endChange(PageProxyCursor, long)}.
+     */
+    public static long beginChange( PageProxyCursor cursor )
+    {
+        long version = getVersion( cursor );
+        cursor.setOffset( PersistedPageHeader.BYTE_POSITION_VERSION );
+        cursor.putLong( version + 1 );
+        return version;
+    }
+
+    public static void endChange( PageProxyCursor cursor, long version )
+    {
+        cursor.setOffset( PersistedPageHeader.BYTE_POSITION_VERSION );
+        cursor.putLong( version + 2 );
+    }
+
     public long getChildIdAtIndex( PageProxyCursor cursor, int indexOfChild )
     {
         long childId = 0;
@@ -214,9 +374,9 @@ public class IndexTree
         }
     }
 
-    public static long acquireNewLeafNode( PageProxyCursor cursor ) throws IOException
+    public long acquireNewLeafNode( PageProxyCursor cursor ) throws IOException
     {
-        long newNodeId = TreeNodeIDManager.acquire();
+        long newNodeId = nodeIds.acquire();
         cursor.goToPage( newNodeId );
         PersistedPageHeader.initializeLeafNode( cursor );
         return newNodeId;
@@ -224,11 +384,12 @@ public class IndexTree
 
     public long acquireNewLeafNode() throws IOException
     {
-        long newNodeId = TreeNodeIDManager.acquire();
+        long newNodeId = nodeIds.acquire();
         try
         {
             PageProxyCursor cursor = disk.getCursor( newNodeId );
             PersistedPageHeader.initializeLeafNode( cursor, this.keySize );
+            cursor.flush();
         }
         catch ( Exception e )
         {
@@ -237,17 +398,45 @@ public class IndexTree
         return newNodeId;
     }
 
-    public static long acquireNewInternalNode( PageProxyCursor cursor ) throws IOException
+    public long acquireNewInternalNode( PageProxyCursor cursor ) throws IOException
     {
-        long newNodeId = TreeNodeIDManager.acquire();
+        long newNodeId = nodeIds.acquire();
         cursor.goToPage( newNodeId );
         PersistedPageHeader.initializeInternalNode( cursor );
         return newNodeId;
     }
 
-    public static void releaseNode( long nodeId )
+    public void releaseNode( long nodeId )
+    {
+        nodeIds.release( nodeId );
+    }
+
+    /**
+     * Forces the pages to disk through the page file, which also empties its log, and writes the free node ids next
+     * to them, so nodes released before a restart are reused after it. No change to the tree can run at the same time.
+     */
+    public void checkpoint() throws IOException
+    {
+        structureLock.writeLock().lock();
+        try
+        {
+            disk.getCursor( rootNodeId ).force();
+            nodeIds.checkpoint();
+        }
+        finally
+        {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checkpoints the tree, so the free node ids are kept for the next time the page file is opened. The page file
+     * itself is left open.
+     */
+    @Override
+    public void close() throws IOException
     {
-        TreeNodeIDManager.release( nodeId );
+        checkpoint();
     }
 
     public static void removeFirstKeyInInternalNode( PageProxyCursor cursor )
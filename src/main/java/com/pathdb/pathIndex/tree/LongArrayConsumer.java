@@ -0,0 +1,18 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pathIndex.tree;
+
+/**
+ * Receives keys from {@link SearchCursor#forEachRemaining(PageProxyCursor, LongArrayConsumer)}. The array is reused
+ * for every key, so it must be copied if it is kept after accept returns.
+ */
+@FunctionalInterface
+public interface LongArrayConsumer
+{
+    void accept( long[] key );
+}
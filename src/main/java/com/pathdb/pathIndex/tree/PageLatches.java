@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pathIndex.tree;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive latches on pages, striped over a fixed number of locks by page id. Two pages may share a lock, which only
+ * costs concurrency, never correctness, as long as no thread holds more than one latch at a time.
+ */
+public class PageLatches
+{
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] latches;
+
+    public PageLatches()
+    {
+        this( DEFAULT_STRIPES );
+    }
+
+    public PageLatches( int stripes )
+    {
+        latches = new ReentrantLock[stripes];
+        for ( int i = 0; i < stripes; i++ )
+        {
+            latches[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock latchFor( long pageId )
+    {
+        long hash = pageId * 0x9E3779B97F4A7C15L;
+        return latches[(int) ((hash >>> 32) % latches.length)];
+    }
+}
@@ -19,9 +19,26 @@ public class SearchCursor
     long[] searchKey;
     public long pageID;
     int keysInNode;
+    /**
+     * Set when the cursor was found by an optimistic search. Every leaf the cursor reads is then checked against the
+     * version it had when the cursor got to it, and the scan starts over after the last returned key if it changed.
+     */
+    private final IndexSearch search;
+    private long stamp;
+    private long version;
+    private final long[] lastKey;
+    private boolean hasLastKey;
+    private int lastKeyRepeats;
+    private int keysToSkip;
 
 
     public SearchCursor( long pageID, long siblingNode, int position, long[] searchKey, int keyLength, int keysInNode )
+    {
+        this( pageID, siblingNode, position, searchKey, keyLength, keysInNode, null, 0, 0 );
+    }
+
+    SearchCursor( long pageID, long siblingNode, int position, long[] searchKey, int keyLength, int keysInNode,
+            IndexSearch search, long stamp, long version )
     {
         this.siblingNode = siblingNode;
         this.searchKey = searchKey;
@@ -29,64 +46,228 @@ public class SearchCursor
         this.currentKeyIndex = position;
         this.pageID = pageID;
         this.keysInNode = keysInNode;
+        this.search = search;
+        this.stamp = stamp;
+        this.version = version;
+        this.lastKey = new long[keyLength];
     }
 
+    /**
+     * @return the next key matching the search key, or null if there are no more. A new array is returned for every
+     * key, use {@link #next(PageProxyCursor, long[])} to read many keys without allocating.
+     */
     public long[] next( PageProxyCursor cursor ) throws IOException
     {
-        long[] next = getNext( cursor );
-        if ( next != null )
+        long[] next = new long[keyLength];
+        return next( cursor, next ) ? next : null;
+    }
+
+    /**
+     * Reads the next key matching the search key into dest, which must hold at least keyLength longs.
+     *
+     * @return false if there are no more matching keys, in which case dest is left untouched.
+     */
+    public boolean next( PageProxyCursor cursor, long[] dest ) throws IOException
+    {
+        while ( true )
         {
-            currentKeyIndex++;
+            if ( !hasNext( cursor ) )
+            {
+                return false;
+            }
+            int keyOffset = currentKeyOffset();
+            for ( int i = 0; i < keyLength; i++ )
+            {
+                dest[i] = cursor.getLong( keyOffset + (i * 8) );
+            }
+            if ( isUnchanged( cursor ) )
+            {
+                break;
+            }
+            restart( cursor );
         }
-        return next;
+        rememberLastKey( dest );
+        currentKeyIndex++;
+        return true;
     }
 
-    private long[] getNext( PageProxyCursor cursor ) throws IOException
+    /**
+     * Checks if there is another matching key. The key is compared in place and not read out of the node.
+     */
+    public boolean hasNext( PageProxyCursor cursor ) throws IOException
+    {
+        while ( true )
+        {
+            Boolean hasNext;
+            try
+            {
+                hasNext = tryHasNext( cursor );
+            }
+            catch ( RuntimeException e )
+            {
+                // A node read while it was restructured can hold anything, only trust the failure if it was not.
+                if ( search == null || search.tree.structureStamps.validate( stamp ) )
+                {
+                    throw e;
+                }
+                hasNext = null;
+            }
+            if ( hasNext != null )
+            {
+                return hasNext;
+            }
+            restart( cursor );
+        }
+    }
+
+    /**
+     * @return null if a leaf changed while it was read, and the scan has to start over.
+     */
+    private Boolean tryHasNext( PageProxyCursor cursor ) throws IOException
     {
         if ( cursor.getCurrentPageId() != pageID )
         {
             cursor.goToPage( pageID );
         }
-        long[] currentKey = new long[keyLength];
-        if ( currentKeyIndex < keysInNode )
+        while ( true )
         {
-            for ( int i = 0; i < keyLength; i++ )
+            while ( currentKeyIndex >= keysInNode )
+            {
+                if ( !isUnchanged( cursor ) )
+                {
+                    return null;
+                }
+                if ( siblingNode == -1 )
+                {
+                    return false;
+                }
+                if ( !loadSiblingNode( cursor ) )
+                {
+                    return null;
+                }
+            }
+            if ( keysToSkip > 0 && isLastKeyAt( cursor, currentKeyOffset() ) )
             {
-                int bytePosition = PersistedPageHeader.NODE_HEADER_LENGTH + (currentKeyIndex * keyLength * 8) + (i * 8);
-                currentKey[i] = cursor.getLong( bytePosition );
+                // Already returned before the scan started over.
+                keysToSkip--;
+                currentKeyIndex++;
+                continue;
             }
+            keysToSkip = 0;
+            boolean valid = isValidPrefixAt( cursor, currentKeyOffset() );
+            return isUnchanged( cursor ) ? valid : null;
         }
-        else
+    }
+    /**
+     * Hands every remaining matching key to the consumer. One array is reused for all keys.
+     */
+    public void forEachRemaining( PageProxyCursor cursor, LongArrayConsumer consumer ) throws IOException
+    {
+        long[] key = new long[keyLength];
+        while ( next( cursor, key ) )
         {
-            if ( siblingNode != -1 )
+            consumer.accept( key );
+        }
+    }
+
+    private int currentKeyOffset()
+    {
+        return PersistedPageHeader.NODE_HEADER_LENGTH + (currentKeyIndex * keyLength * 8);
+    }
+
+    /**
+     * Same as {@link KeyImpl#validPrefix(long[], long[])} against the key stored at the given offset.
+     */
+    private boolean isValidPrefixAt( PageProxyCursor cursor, int keyOffset )
+    {
+        if ( searchKey.length > keyLength || searchKey.length == 0 )
+        {
+            return false;
+        }
+        for ( int i = 0; i < searchKey.length; i++ )
+        {
+            if ( searchKey[i] != cursor.getLong( keyOffset + (i * 8) ) )
             {
-                loadSiblingNode( cursor );
-                return getNext( cursor );
+                return false;
             }
-            else
+        }
+        return true;
+    }
+
+    private boolean isLastKeyAt( PageProxyCursor cursor, int keyOffset )
+    {
+        for ( int i = 0; i < keyLength; i++ )
+        {
+            if ( lastKey[i] != cursor.getLong( keyOffset + (i * 8) ) )
             {
-                return null;
+                return false;
             }
         }
-        if ( KeyImpl.getComparator().validPrefix( searchKey, currentKey ) )
+        return true;
+    }
+
+    private void rememberLastKey( long[] key )
+    {
+        if ( search == null )
+        {
+            return;
+        }
+        boolean repeated = hasLastKey;
+        for ( int i = 0; i < keyLength && repeated; i++ )
+        {
+            repeated = lastKey[i] == key[i];
+        }
+        if ( repeated )
         {
-            return currentKey;
+            lastKeyRepeats++;
+        }
+        else
+        {
+            System.arraycopy( key, 0, lastKey, 0, keyLength );
+            hasLastKey = true;
+            lastKeyRepeats = 1;
         }
-        return null;
     }
 
-    public boolean hasNext( PageProxyCursor cursor ) throws IOException
+    private boolean isUnchanged( PageProxyCursor cursor ) throws IOException
     {
-        return getNext( cursor ) != null;
+        return search == null || search.isUnchangedSince( cursor, version, stamp );
     }
 
+    /**
+     * Searches the tree again for the last returned key, and skips over it and the copies of it already returned.
+     */
+    private void restart( PageProxyCursor cursor ) throws IOException
+    {
+        SearchCursor found = search.findOptimistically( cursor, hasLastKey ? lastKey : searchKey );
+        this.pageID = found.pageID;
+        this.siblingNode = found.siblingNode;
+        this.currentKeyIndex = found.currentKeyIndex;
+        this.keysInNode = found.keysInNode;
+        this.stamp = found.stamp;
+        this.version = found.version;
+        this.keysToSkip = hasLastKey ? lastKeyRepeats : 0;
+    }
 
-    private void loadSiblingNode( PageProxyCursor cursor ) throws IOException
+    /**
+     * @return false if the sibling changed while it was read, in which case the scan position is left as it was.
+     */
+    private boolean loadSiblingNode( PageProxyCursor cursor ) throws IOException
     {
-        cursor.goToPage( siblingNode );
-        this.pageID = siblingNode;
-        this.keysInNode = PersistedPageHeader.getNumberOfKeys( cursor );
+        long nodeId = siblingNode;
+        cursor.goToPage( nodeId );
+        long nodeVersion = IndexTree.getVersion( cursor );
+        int keys = PersistedPageHeader.getNumberOfKeys( cursor );
+        long sibling = PersistedPageHeader.getSiblingID( cursor );
+        if ( search != null && !search.isUnchangedSince( cursor, nodeVersion, stamp ) )
+        {
+            return false;
+        }
+        this.pageID = nodeId;
+        this.version = nodeVersion;
+        this.keysInNode = keys;
         this.currentKeyIndex = 0;
-        this.siblingNode = PersistedPageHeader.getSiblingID( cursor );
+        this.siblingNode = sibling;
+        return true;
     }
 }
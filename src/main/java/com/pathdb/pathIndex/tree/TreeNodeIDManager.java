@@ -7,51 +7,230 @@
 
 package com.pathdb.pathIndex.tree;
 
-import java.util.LinkedList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Hands out the ids of the pages of one page file. Released ids are reused first, the most recently released one
+ * first, then new ids are taken from the end of the file. Acquiring and releasing never block, except for the first
+ * change after a checkpoint, which deletes the ids file.
+ * <p>
+ * The ids are kept next to the page file, in a file with {@link #ID_FILE_SUFFIX} appended to its name, whenever
+ * {@link #checkpoint()} is called, and read back when the page file is opened again. The ids file is deleted before
+ * the first id is handed out or released after the checkpoint, so a file which is still there after a crash matches
+ * the pages. A file which was not written for the page file as it is now, because it is older than the page file or
+ * the page file has a different length, is not trusted either.
+ */
 public class TreeNodeIDManager
 {
-    private static LinkedList<Long> pool = null;
-    public static long currentID = 0;
+    public static final String ID_FILE_SUFFIX = ".ids";
+    // Files of the first format start with the next id, and are not read.
+    private static final int ID_FILE_FORMAT = 2;
+
+    private final File pageFile;
+    private final File idFile;
+    private final AtomicLong nextId;
+    private final ConcurrentLinkedDeque<Long> pool = new ConcurrentLinkedDeque<>();
+    private final Set<Long> pooled = ConcurrentHashMap.newKeySet();
+    /**
+     * Set while the ids file matches the ids, from a checkpoint until the next change.
+     */
+    private volatile boolean saved;
 
+    /**
+     * Ids which are not kept anywhere, starting at 0.
+     */
     public TreeNodeIDManager()
     {
-        if ( pool == null )
+        this( null, 0 );
+    }
+
+    private TreeNodeIDManager( File pageFile, long firstUnusedId )
+    {
+        this.pageFile = pageFile;
+        this.idFile = pageFile == null ? null : new File( pageFile.getPath() + ID_FILE_SUFFIX );
+        this.nextId = new AtomicLong( firstUnusedId );
+    }
+
+    /**
+     * Opens the ids of the given page file. The released ids of the last checkpoint are read back, if nothing was
+     * changed since. Otherwise the ids file is deleted and only the released ids are lost.
+     *
+     * @param firstUnusedId the id after the last page in the file, so pages the file grew by after the last checkpoint
+     * are not handed out again.
+     */
+    public static TreeNodeIDManager open( File pageFile, long firstUnusedId ) throws IOException
+    {
+        TreeNodeIDManager ids = new TreeNodeIDManager( pageFile, firstUnusedId );
+        if ( ids.idFile.exists() )
+        {
+            if ( ids.idFile.lastModified() >= pageFile.lastModified() )
+            {
+                ids.read();
+            }
+            if ( !ids.saved )
+            {
+                Files.delete( ids.idFile.toPath() );
+            }
+        }
+        return ids;
+    }
+
+    private void read() throws IOException
+    {
+        long savedNextId;
+        long[] released;
+        try ( DataInputStream in = new DataInputStream(
+                new BufferedInputStream( Files.newInputStream( idFile.toPath() ) ) ) )
+        {
+            if ( in.readInt() != ID_FILE_FORMAT || in.readLong() != pageFile.length() )
+            {
+                return;
+            }
+            savedNextId = in.readLong();
+            int count = in.readInt();
+            if ( count < 0 || count > idFile.length() / Long.BYTES )
+            {
+                return;
+            }
+            released = new long[count];
+            for ( int i = 0; i < released.length; i++ )
+            {
+                released[i] = in.readLong();
+            }
+        }
+        catch ( EOFException e )
+        {
+            return;
+        }
+        skipTo( savedNextId );
+        for ( long id : released )
         {
-            pool = new LinkedList<>();
+            release( id );
         }
+        saved = true;
     }
 
-    public static Long acquire()
+    public long acquire()
     {
-        if ( pool == null )
+        invalidateSaved();
+        Long id = pool.poll();
+        if ( id != null )
         {
-            pool = new LinkedList<>();
+            pooled.remove( id );
+            return id;
         }
-        if ( pool.size() > 0 )
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Makes the id available again. Releasing an id which is already released does nothing.
+     */
+    public void release( long id )
+    {
+        invalidateSaved();
+        if ( pooled.add( id ) )
         {
-            return pool.pop();
+            pool.push( id );
         }
-        else
+    }
+
+    public boolean isNodeIdInFreePool( long id )
+    {
+        return pooled.contains( id );
+    }
+
+    /**
+     * Makes sure no id below the given one is handed out, except for released ones. Used after pages were written
+     * without acquiring their ids, like by the bulk loaders.
+     */
+    public void skipTo( long firstUnusedId )
+    {
+        if ( firstUnusedId > nextId.get() )
         {
-            return currentID++;
+            invalidateSaved();
         }
+        nextId.accumulateAndGet( firstUnusedId, Math::max );
+    }
+
+    /**
+     * @return the id after the highest id handed out so far.
+     */
+    public long firstUnusedId()
+    {
+        return nextId.get();
     }
 
-    public static void release( Long id )
+    /**
+     * Writes the ids to the ids file, replacing the last checkpoint only once they are all written. No id may be
+     * acquired or released while this runs, and the pages must have been forced to disk before, so the ids file
+     * never claims a page is free that is still in use.
+     */
+    public void checkpoint() throws IOException
     {
-        pool.push( id );
+        if ( idFile == null )
+        {
+            return;
+        }
+        File written = new File( idFile.getPath() + ".tmp" );
+        try ( FileOutputStream file = new FileOutputStream( written );
+              DataOutputStream out = new DataOutputStream( new BufferedOutputStream( file ) ) )
+        {
+            Long[] released = pool.toArray( new Long[0] );
+            out.writeInt( ID_FILE_FORMAT );
+            out.writeLong( pageFile.length() );
+            out.writeLong( nextId.get() );
+            out.writeInt( released.length );
+            // Written oldest first, so reading them back restores the order they are reused in.
+            for ( int i = released.length - 1; i >= 0; i-- )
+            {
+                out.writeLong( released[i] );
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move( written.toPath(), idFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE );
+        saved = true;
     }
 
-    public boolean isNodeIdInFreePool( Long search_id )
+    /**
+     * Deletes the ids file before the first change after a checkpoint. Other threads changing ids at the same time
+     * wait until it is gone.
+     */
+    private void invalidateSaved()
     {
-        for ( Long id : pool )
+        if ( !saved )
+        {
+            return;
+        }
+        synchronized ( this )
         {
-            if ( search_id.equals( id ) )
+            if ( saved )
             {
-                return true;
+                try
+                {
+                    Files.deleteIfExists( idFile.toPath() );
+                }
+                catch ( IOException e )
+                {
+                    throw new UncheckedIOException( "Could not delete the stale ids file " + idFile, e );
+                }
+                saved = false;
             }
         }
-        return false;
     }
 }
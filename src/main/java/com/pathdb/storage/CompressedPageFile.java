@@ -9,6 +9,7 @@ package com.pathdb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
@@ -19,20 +20,93 @@ import static com.pathdb.storage.DiskCache.PAGE_SIZE;
 public class CompressedPageFile implements PageFile<P>
 {
     private final int maxPageSize = PAGE_SIZE * 15;
-    private final ByteBuffer uncompressedBytes = ByteBuffer.allocate( maxPageSize );
-    private final int sameID = 128;
-    private final int sameFirstNode = 64;
+    private final ByteBuffer uncompressedBytes;
+    private final int sameID = DeltaKeyEncoding.SAME_ID;
+    private final int sameFirstNode = DeltaKeyEncoding.SAME_FIRST_NODE;
     private final PersistedPageFile persistedPageFile;
-    private final ByteBuffer compressedBytes = ByteBuffer.allocate( PAGE_SIZE );
+    private final PageBufferPool bufferPool;
+    private final DecompressedLeafCache leafCache;
+    private final ByteBuffer compressedBytes;
+    private final SlabAllocator allocator;
+    private final byte[] ioScratch;
     private long currentPageId;
 
-    private boolean deferWriting = false;
+    private boolean dirty = false;
     private int mostRecentCompressedLeafSize = PAGE_SIZE;//the default value
+    private int keysInMostRecentCompressedLeaf = 0;
 
 
     public CompressedPageFile( File file ) throws IOException
     {
-        persistedPageFile = new PersistedPageFile( file );
+        this( file, 0, null );
+    }
+
+    /**
+     * Reads and writes the compressed pages through a {@link PageBufferPool} with the given number of frames.
+     */
+    public CompressedPageFile( File file, int bufferPoolFrames ) throws IOException
+    {
+        this( file, bufferPoolFrames, null );
+    }
+
+    /**
+     * @param bufferPoolFrames number of frames of the buffer pool, or 0 to read and write the file directly.
+     * @param leafCache cache for decompressed leaves, or null to decompress a leaf on every visit.
+     */
+    public CompressedPageFile( File file, int bufferPoolFrames, DecompressedLeafCache leafCache ) throws IOException
+    {
+        this( file, bufferPoolFrames, leafCache, null );
+    }
+
+    /**
+     * @param allocator allocator for off-heap page buffers and buffer pool frames, or null to keep them on the heap.
+     */
+    public CompressedPageFile( File file, int bufferPoolFrames, DecompressedLeafCache leafCache,
+            SlabAllocator allocator ) throws IOException
+    {
+        this( new PersistedPageFile( file ), bufferPoolFrames, leafCache, allocator );
+    }
+
+    /**
+     * Compresses pages into the given page file, like a {@link LoggedPageFile} to make commits durable.
+     */
+    public CompressedPageFile( PersistedPageFile persistedPageFile, int bufferPoolFrames,
+            DecompressedLeafCache leafCache, SlabAllocator allocator )
+    {
+        this( persistedPageFile, bufferPoolFrames > 0 ? new PageBufferPool( persistedPageFile, bufferPoolFrames,
+                PageBufferPool.DEFAULT_STRIPES, allocator ) : null, leafCache, allocator );
+    }
+
+    private CompressedPageFile( PersistedPageFile persistedPageFile, PageBufferPool bufferPool,
+            DecompressedLeafCache leafCache, SlabAllocator allocator )
+    {
+        this.persistedPageFile = persistedPageFile;
+        this.bufferPool = bufferPool;
+        this.leafCache = leafCache;
+        this.allocator = allocator;
+        if ( allocator == null )
+        {
+            uncompressedBytes = ByteBuffer.allocate( maxPageSize );
+            compressedBytes = ByteBuffer.allocate( PAGE_SIZE );
+            ioScratch = null;
+        }
+        else
+        {
+            uncompressedBytes = allocator.allocate( maxPageSize );
+            compressedBytes = allocator.allocate( PAGE_SIZE );
+            // The page file only moves bytes through arrays, the off-heap buffers go through this one.
+            ioScratch = new byte[PAGE_SIZE];
+        }
+    }
+
+    /**
+     * Opens another cursor over the same file, sharing the buffer pool and leaf cache but with page buffers of its
+     * own. A cursor must only be used by one thread at a time, so every thread reading the file needs one. A page
+     * modified through one cursor is seen by the others once it is flushed.
+     */
+    public CompressedPageFile openCursor()
+    {
+        return new CompressedPageFile( persistedPageFile, bufferPool, leafCache, allocator );
     }
 
     private void decompress( ByteBuffer compressedBytes )
@@ -47,16 +121,67 @@ public class CompressedPageFile implements PageFile<P>
         }
     }
 
+    /**
+     * Moves to the given page. If the current page was modified, it is compressed and written before leaving it.
+     */
     public void goToPage( long page ) throws IOException
     {
-        compressedBytes.put( persistedPageFile.getBytes( page ) );
-        decompress( compressedBytes );
+        if ( dirty )
+        {
+            if ( page == currentPageId )
+            {
+                // The page in memory is newer than the one on disk.
+                return;
+            }
+            flush();
+        }
         currentPageId = page;
+        if ( leafCache != null && loadCachedLeaf( page ) )
+        {
+            return;
+        }
+        // Taken before the read, so an image another cursor replaces meanwhile is not cached.
+        long stamp = leafCache == null ? 0 : leafCache.stamp();
+        compressedBytes.clear();
+        readPageBytes( page );
+        decompress( compressedBytes );
+        if ( leafCache != null && PersistedPageHeader.isLeafNode( uncompressedBytes ) )
+        {
+            cacheLeaf( page, stamp );
+        }
     }
 
+    private boolean loadCachedLeaf( long page )
+    {
+        DecompressedLeafCache.Leaf leaf = leafCache.get( page );
+        if ( leaf == null )
+        {
+            return false;
+        }
+        uncompressedBytes.limit( maxPageSize );
+        uncompressedBytes.position( 0 );
+        uncompressedBytes.put( leaf.image );
+        mostRecentCompressedLeafSize = leaf.compressedSize;
+        keysInMostRecentCompressedLeaf = PersistedPageHeader.getNumberOfKeys( uncompressedBytes );
+        return true;
+    }
+
+    private void cacheLeaf( long page, long stamp )
+    {
+        int end = uncompressedBytes.position();
+        byte[] image = new byte[end];
+        uncompressedBytes.position( 0 );
+        uncompressedBytes.get( image );
+        leafCache.put( page, image, mostRecentCompressedLeafSize, stamp );
+    }
+
+    /**
+     * Compresses and writes the current page if it was modified since it was last written. Modifications are only
+     * written when moving to another page or on flush, so a page modified many times is only compressed once.
+     */
     public void flush()
     {
-        if ( !deferWriting )
+        if ( dirty )
         {
             int mark = uncompressedBytes.position();
             if ( PersistedPageHeader.isLeafNode( uncompressedBytes ) )
@@ -68,12 +193,117 @@ public class CompressedPageFile implements PageFile<P>
                 writeInternal();
             }
             uncompressedBytes.position( mark );
+            if ( leafCache != null )
+            {
+                leafCache.invalidate( currentPageId );
+            }
+            dirty = false;
         }
     }
 
     private void writeInternal()
     {
-        persistedPageFile.writeBytes( 0, uncompressedBytes.array() );
+        writePageBytes( pageBytes( uncompressedBytes ) );
+    }
+
+    private void readPageBytes( long page ) throws IOException
+    {
+        if ( bufferPool != null )
+        {
+            bufferPool.read( page, compressedBytes );
+        }
+        else
+        {
+            compressedBytes.put( persistedPageFile.getBytes( page ) );
+        }
+    }
+
+    private byte[] pageBytes( ByteBuffer buffer )
+    {
+        if ( buffer.hasArray() )
+        {
+            return buffer.array();
+        }
+        for ( int i = 0; i < PAGE_SIZE; i++ )
+        {
+            ioScratch[i] = buffer.get( i );
+        }
+        return ioScratch;
+    }
+
+    private void writePageBytes( byte[] bytes )
+    {
+        if ( bufferPool != null )
+        {
+            try
+            {
+                bufferPool.write( currentPageId, bytes );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( "Could not write page " + currentPageId, e );
+            }
+        }
+        else
+        {
+            persistedPageFile.writeBytes( currentPageId, bytes );
+        }
+    }
+
+    /**
+     * Commits all pages, and forces the file to disk.
+     */
+    public void force() throws IOException
+    {
+        commit();
+        persistedPageFile.force();
+    }
+
+    /**
+     * Writes the current page and the pages held by the buffer pool to the page file, and commits them there. Unlike
+     * {@link #force()}, a logged page file only has to force its log.
+     */
+    public void commit() throws IOException
+    {
+        persistedPageFile.commit( this::writeBack );
+    }
+
+    /**
+     * Starts a change spread over several pages, see {@link PersistedPageFile#beginChange()}. The pages of the change
+     * must be flushed before it is ended, as commits only write back the pages of the buffer pool and of the cursor
+     * which commits.
+     */
+    public void beginChange()
+    {
+        persistedPageFile.beginChange();
+    }
+
+    public void endChange()
+    {
+        persistedPageFile.endChange();
+    }
+
+    private void writeBack() throws IOException
+    {
+        flush();
+        if ( bufferPool != null )
+        {
+            bufferPool.flush();
+        }
+    }
+
+    /**
+     * Forces the file to disk and gives the off-heap buffers back to the allocator. The page file can not be used
+     * after it is closed.
+     */
+    public void close() throws IOException
+    {
+        force();
+        if ( allocator != null )
+        {
+            allocator.release( uncompressedBytes );
+            allocator.release( compressedBytes );
+        }
     }
 
 
@@ -87,8 +317,9 @@ public class CompressedPageFile implements PageFile<P>
         if ( decompressedSize != 0 )
         {
             compress();
-            persistedPageFile.writeBytes( PersistedPageHeader.NODE_HEADER_LENGTH, compressedBytes.array() );
+            writePageBytes( pageBytes( compressedBytes ) );
             mostRecentCompressedLeafSize = compressedBytes.position() + PersistedPageHeader.NODE_HEADER_LENGTH;
+            keysInMostRecentCompressedLeaf = PersistedPageHeader.getNumberOfKeys( uncompressedBytes );
         }
     }
 
@@ -106,78 +337,23 @@ public class CompressedPageFile implements PageFile<P>
                 next[j] = uncompressedBytes.getLong();
             }
             compressedBytes.put( encodeKey( next, prev ) );
+            // Swap instead of assigning, prev must keep its own values when next is overwritten.
+            long[] tmp = prev;
             prev = next;
+            next = tmp;
         }
     }
 
     public byte[] encodeKey( long[] key, long[] prev )
     {
-        int maxNumBytes = 0;
-        int firstEncodedIndex = 0;
-        byte header = (byte) 0;
-        if ( key[0] == prev[0] )
-        {
-            //set first bit
-            firstEncodedIndex++;
-            header |= sameID;
-
-            if ( key[1] == prev[1] )
-            {
-                //set second bit
-                firstEncodedIndex++;
-                header |= sameFirstNode;
-            }
-        }
-
-        for ( int i = firstEncodedIndex; i < key.length; i++ )
-        {
-            maxNumBytes = Math.max( maxNumBytes, numberOfBytes( key[i] - prev[i] ) );
-        }
-
-        byte[] encoded = new byte[1 + (maxNumBytes * (key.length - firstEncodedIndex))];
-        header |= maxNumBytes;
-        encoded[0] = header;
-        for ( int i = 0; i < key.length - firstEncodedIndex; i++ )
-        {
-            toBytes( key[i + firstEncodedIndex] - prev[i + firstEncodedIndex], encoded, 1 + (i * maxNumBytes),
-                    maxNumBytes );
-        }
-        return encoded;
+        byte[] encoded = new byte[DeltaKeyEncoding.maxEncodedLength( key.length )];
+        int length = DeltaKeyEncoding.encode( key, prev, encoded, 0 );
+        return Arrays.copyOf( encoded, length );
     }
 
     public static int numberOfBytes( long value )
     {
-        long abs = Math.abs( value );
-        int minBytes = 8;
-        if ( abs <= 127 )
-        {
-            minBytes = 1;
-        }
-        else if ( abs <= 32768 )
-        {
-            minBytes = 2;
-        }
-        else if ( abs <= 8388608 )
-        {
-            minBytes = 3;
-        }
-        else if ( abs <= 2147483648l )
-        {
-            minBytes = 4;
-        }
-        else if ( abs <= 549755813888l )
-        {
-            minBytes = 5;
-        }
-        else if ( abs <= 140737488355328l )
-        {
-            minBytes = 6;
-        }
-        else if ( abs <= 36028797018963968l )
-        {
-            minBytes = 7;
-        }
-        return minBytes;
+        return DeltaKeyEncoding.numberOfBytes( value );
     }
 
     public static void toBytes( long val, byte[] dest, int position, int numberOfBytes )
@@ -298,11 +474,22 @@ public class CompressedPageFile implements PageFile<P>
             }
         }
         mostRecentCompressedLeafSize = position;
+        keysInMostRecentCompressedLeaf = numberOfKeys;
     }
 
     private void decompressInternalNode( ByteBuffer compressedBytes )
     {
-        Arrays.fill( uncompressedBytes.array(), (byte) 0 );
+        if ( uncompressedBytes.hasArray() )
+        {
+            Arrays.fill( uncompressedBytes.array(), (byte) 0 );
+        }
+        else
+        {
+            for ( int i = 0; i < maxPageSize; i += Long.BYTES )
+            {
+                uncompressedBytes.putLong( i, 0L );
+            }
+        }
         uncompressedBytes.position( 0 );
         compressedBytes.position( 0 );
         uncompressedBytes.limit( PAGE_SIZE );
@@ -312,6 +499,21 @@ public class CompressedPageFile implements PageFile<P>
         }
     }
 
+    /**
+     * Reads the version of the current page as the other cursors see it, from the buffer pool or the file rather than
+     * from the copy this cursor works on. A reader which finds it equal to the version of its copy knows the page was
+     * not written since it was read.
+     */
+    public long readPublishedVersion() throws IOException
+    {
+        if ( bufferPool != null )
+        {
+            return bufferPool.readLong( currentPageId, PersistedPageHeader.BYTE_POSITION_VERSION );
+        }
+        return ByteBuffer.wrap( persistedPageFile.getBytes( currentPageId ) )
+                .getLong( PersistedPageHeader.BYTE_POSITION_VERSION );
+    }
+
     public long getCurrentPageId()
     {
         return currentPageId;
@@ -340,13 +542,13 @@ public class CompressedPageFile implements PageFile<P>
     public void putBytes( byte[] src )
     {
         uncompressedBytes.put( src );
-        flush();
+        dirty = true;
     }
 
     public void putByte( int offset, byte val )
     {
         uncompressedBytes.put( offset, val );
-        flush();
+        dirty = true;
     }
 
     public long getLong()
@@ -362,13 +564,13 @@ public class CompressedPageFile implements PageFile<P>
     public void putLong( long val )
     {
         uncompressedBytes.putLong( val );
-        flush();
+        dirty = true;
     }
 
     public void putLong( int offset, long val )
     {
         uncompressedBytes.putLong( offset, val );
-        flush();
+        dirty = true;
     }
 
     public int getInt()
@@ -384,25 +586,16 @@ public class CompressedPageFile implements PageFile<P>
     public void putInt( int offset, int val )
     {
         uncompressedBytes.putInt( offset, val );
-        flush();
+        dirty = true;
     }
 
     public boolean leafNodeContainsSpaceForNewKey( long[] newKey )
     {
         //return NodeSize.leafNodeContainsSpaceForNewKey(this, newKey);
         int magic = 10;
-        return mostRecentCompressedLeafSize + (newKey.length * Long.BYTES) + magic < PAGE_SIZE;
-    }
-
-    public void deferWriting()
-    {
-        deferWriting = true;
-    }
-
-    public void resumeWriting()
-    {
-        deferWriting = false;
-        flush();//maybe not necessary, and this is maybe redundant.
+        // Keys added since the leaf was last compressed are counted at their uncompressed size.
+        int pendingKeys = PersistedPageHeader.getNumberOfKeys( uncompressedBytes ) - keysInMostRecentCompressedLeaf;
+        return mostRecentCompressedLeafSize + ((pendingKeys + 1) * newKey.length * Long.BYTES) + magic < PAGE_SIZE;
     }
 
     public boolean internalNodeContainsSpaceForNewKeyAndChild( long[] newKey )
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the decompressed images of recently visited leaves, so that going back to a leaf does not need to decompress
+ * it again. The cache is bounded by the total number of bytes of the images it holds, the least recently used leaves
+ * are evicted first. An image must be invalidated whenever the page is written.
+ * <p>
+ * Larger caches are split into segments by page id, each with its own share of the bytes and its own lock, so readers
+ * of different leaves do not wait on each other. The least recently used leaf of a segment is evicted, which is close
+ * to the least recently used leaf of the whole cache.
+ * <p>
+ * A reader which decompressed a leaf while a writer replaced it must not put the old image back after the writer
+ * invalidated it. Readers take a {@link #stamp()} before reading the page and hand it to
+ * {@link #put(long, byte[], int, long)}, which drops the image if the page was invalidated since.
+ * <p>
+ * The cache can be shared between several {@link CompressedPageFile}s on the same file.
+ */
+public class DecompressedLeafCache
+{
+    private static final int INVALIDATION_STRIPES = 64;
+    private static final int MAX_SEGMENTS = 16;
+    private static final long MIN_SEGMENT_BYTES = 1 << 20;
+
+    private final Segment[] segments;
+    private final AtomicLong invalidations = new AtomicLong();
+    // The stamp of the last invalidation of any page in the stripe, so puts of unrelated pages are rarely dropped.
+    // Guarded by the segment of the stripe.
+    private final long[] invalidatedAt = new long[INVALIDATION_STRIPES];
+
+    public DecompressedLeafCache( long maxBytes )
+    {
+        int segmentCount = Integer.highestOneBit( (int) Math.max( 1, Math.min( MAX_SEGMENTS,
+                maxBytes / MIN_SEGMENT_BYTES ) ) );
+        this.segments = new Segment[segmentCount];
+        for ( int i = 0; i < segmentCount; i++ )
+        {
+            segments[i] = new Segment( maxBytes / segmentCount );
+        }
+    }
+
+    /**
+     * @return the cached leaf for the page, or null if the page is not cached.
+     */
+    public Leaf get( long pageId )
+    {
+        Segment segment = segmentOf( stripeOf( pageId ) );
+        synchronized ( segment )
+        {
+            return segment.leaves.get( pageId );
+        }
+    }
+
+    /**
+     * Caches the decompressed image of the page. Images larger than the share of the cache of the page's segment are
+     * not cached.
+     *
+     * @param image the decompressed page, header included. Must not be modified after it is handed to the cache.
+     * @param compressedSize the number of bytes the page takes when compressed.
+     */
+    public void put( long pageId, byte[] image, int compressedSize )
+    {
+        put( pageId, image, compressedSize, Long.MAX_VALUE );
+    }
+
+    /**
+     * Caches the decompressed image of the page, unless the page was invalidated after the stamp was taken.
+     *
+     * @param stamp the {@link #stamp()} taken before the page was read.
+     */
+    public void put( long pageId, byte[] image, int compressedSize, long stamp )
+    {
+        int stripe = stripeOf( pageId );
+        Segment segment = segmentOf( stripe );
+        synchronized ( segment )
+        {
+            if ( image.length > segment.maxBytes || invalidatedAt[stripe] > stamp )
+            {
+                return;
+            }
+            Leaf previous = segment.leaves.put( pageId, new Leaf( image, compressedSize ) );
+            if ( previous != null )
+            {
+                segment.usedBytes -= previous.image.length;
+            }
+            segment.usedBytes += image.length;
+            Iterator<Map.Entry<Long,Leaf>> leastRecentlyUsed = segment.leaves.entrySet().iterator();
+            while ( segment.usedBytes > segment.maxBytes )
+            {
+                segment.usedBytes -= leastRecentlyUsed.next().getValue().image.length;
+                leastRecentlyUsed.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a stamp to hand to {@link #put(long, byte[], int, long)}, taken before reading the page to cache.
+     */
+    public long stamp()
+    {
+        return invalidations.get();
+    }
+
+    public void invalidate( long pageId )
+    {
+        int stripe = stripeOf( pageId );
+        Segment segment = segmentOf( stripe );
+        synchronized ( segment )
+        {
+            invalidatedAt[stripe] = invalidations.incrementAndGet();
+            Leaf removed = segment.leaves.remove( pageId );
+            if ( removed != null )
+            {
+                segment.usedBytes -= removed.image.length;
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                segment.leaves.clear();
+                segment.usedBytes = 0;
+            }
+        }
+    }
+
+    public long usedBytes()
+    {
+        long usedBytes = 0;
+        for ( Segment segment : segments )
+        {
+            synchronized ( segment )
+            {
+                usedBytes += segment.usedBytes;
+            }
+        }
+        return usedBytes;
+    }
+
+    private static int stripeOf( long pageId )
+    {
+        return (int) ((pageId * 0x9E3779B97F4A7C15L) >>> 58);
+    }
+
+    /**
+     * The segment count divides the stripe count, so all pages of a stripe are in the same segment.
+     */
+    private Segment segmentOf( int stripe )
+    {
+        return segments[stripe & (segments.length - 1)];
+    }
+
+    private static class Segment
+    {
+        final long maxBytes;
+        long usedBytes = 0;
+        final LinkedHashMap<Long,Leaf> leaves = new LinkedHashMap<>( 16, 0.75f, true );
+
+        Segment( long maxBytes )
+        {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    public static class Leaf
+    {
+        public final byte[] image;
+        public final int compressedSize;
+
+        Leaf( byte[] image, int compressedSize )
+        {
+            this.image = image;
+            this.compressedSize = compressedSize;
+        }
+    }
+}
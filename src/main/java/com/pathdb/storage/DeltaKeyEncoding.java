@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+package com.pathdb.storage;
+
+/**
+ * The encoding of keys in compressed leaves. Every key is stored as the difference to the key before it. The first
+ * byte is a header: the highest bit is set when the first value (the path id) equals the one of the previous key, the
+ * next bit when the second value (the first node) equals it as well. Values flagged as equal are left out. The low bits
+ * hold the number of bytes every remaining difference is stored in, big endian and sign extended.
+ */
+public final class DeltaKeyEncoding
+{
+    public static final int SAME_ID = 128;
+    public static final int SAME_FIRST_NODE = 64;
+    private static final int BYTES_MASK = SAME_FIRST_NODE - 1;
+
+    private DeltaKeyEncoding()
+    {
+    }
+
+    /**
+     * @return the most bytes one key of the given length can take when encoded.
+     */
+    public static int maxEncodedLength( int keyLength )
+    {
+        return 1 + (keyLength * Long.BYTES);
+    }
+
+    /**
+     * Encodes key relative to prev into dest, starting at offset.
+     *
+     * @return the number of bytes written.
+     */
+    public static int encode( long[] key, long[] prev, byte[] dest, int offset )
+    {
+        int firstEncodedIndex = 0;
+        int header = 0;
+        if ( key[0] == prev[0] )
+        {
+            firstEncodedIndex++;
+            header |= SAME_ID;
+            if ( key.length > 1 && key[1] == prev[1] )
+            {
+                firstEncodedIndex++;
+                header |= SAME_FIRST_NODE;
+            }
+        }
+        int maxNumBytes = 0;
+        for ( int i = firstEncodedIndex; i < key.length; i++ )
+        {
+            maxNumBytes = Math.max( maxNumBytes, numberOfBytes( key[i] - prev[i] ) );
+        }
+        dest[offset] = (byte) (header | maxNumBytes);
+        int position = offset + 1;
+        for ( int i = firstEncodedIndex; i < key.length; i++ )
+        {
+            long delta = key[i] - prev[i];
+            for ( int j = maxNumBytes - 1; j >= 0; j-- )
+            {
+                dest[position + j] = (byte) delta;
+                delta >>= 8;
+            }
+            position += maxNumBytes;
+        }
+        return position - offset;
+    }
+
+    /**
+     * Decodes the key at offset in src, relative to prev, into dest. dest may be prev itself.
+     *
+     * @return the offset right after the encoded key.
+     */
+    public static int decode( byte[] src, int offset, long[] prev, long[] dest )
+    {
+        int header = src[offset++] & 0xFF;
+        int numBytes = header & BYTES_MASK;
+        int firstEncodedIndex = 0;
+        if ( (header & SAME_ID) == SAME_ID )
+        {
+            dest[0] = prev[0];
+            firstEncodedIndex++;
+            if ( (header & SAME_FIRST_NODE) == SAME_FIRST_NODE )
+            {
+                dest[1] = prev[1];
+                firstEncodedIndex++;
+            }
+        }
+        for ( int i = firstEncodedIndex; i < dest.length; i++ )
+        {
+            long delta = src[offset] < 0 ? -1 : 0;
+            for ( int j = 0; j < numBytes; j++ )
+            {
+                delta = (delta << 8) | (src[offset + j] & 0xFF);
+            }
+            dest[i] = prev[i] + delta;
+            offset += numBytes;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes needed to store the value as a sign extended big endian number.
+     */
+    public static int numberOfBytes( long value )
+    {
+        for ( int bytes = 1; bytes < Long.BYTES; bytes++ )
+        {
+            long limit = 1L << (bytes * 8 - 1);
+            if ( value >= -limit && value < limit )
+            {
+                return bytes;
+            }
+        }
+        return Long.BYTES;
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A page file which makes writes durable through a write-ahead log, kept next to the file with {@link #LOG_SUFFIX}
+ * appended to its name.
+ * <p>
+ * Written pages are held in memory until {@link #commit()}. A commit appends the images of all pages written since
+ * the last commit to the log, forces the log, and only then writes the pages into the file. Threads which commit
+ * while another thread is forcing the log wait for it and are then committed together, with one force for all of
+ * them.
+ * <p>
+ * A change spread over several pages, like a split, is wrapped in {@link #beginChange()} and {@link #endChange()}.
+ * Commits only cut off the written pages while no change is in progress, so a commit never holds part of a change of
+ * another thread. Changes keep running while the log is forced, they only wait for the pages to be cut off.
+ * <p>
+ * On open, every group of pages whose commit reached the log is written into the file again, and a group the log ends
+ * in the middle of is dropped. {@link #force()} is the checkpoint: it forces the committed pages into the file and
+ * empties the log. A commit which grows the log past its limit checkpoints as well. If the pages of a logged group
+ * can not all be written into the file, the commit fails and the group is committed again by the next one. The log is
+ * not emptied until that succeeded.
+ */
+public class LoggedPageFile<P extends Page> extends PersistedPageFile<P>
+{
+    public static final String LOG_SUFFIX = ".log";
+    public static final long DEFAULT_LOG_LIMIT = 64L << 20;
+    private static final byte PAGE_RECORD = 1;
+    private static final byte COMMIT_RECORD = 2;
+    private static final int PAGE_RECORD_HEADER = 1 + 8 + 4;
+    private static final int COMMIT_RECORD_LENGTH = 1 + 4 + 8;
+    private static final int LOG_BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel log;
+    private final long logLimit;
+    private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+    private final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+    private final Object commitLock = new Object();
+    private final AtomicLong written = new AtomicLong();
+    final AtomicLong logForces = new AtomicLong();
+    private volatile long committed = 0;
+    private long sealedUpTo = 0;
+    private long logEnd = 0;
+    private boolean writeBackFailed = false;
+    private volatile Map<Long, byte[]> pending = new ConcurrentHashMap<>();
+    private volatile Map<Long, byte[]> sealed = new ConcurrentHashMap<>();
+    private volatile Map<Long, byte[]> committing = new ConcurrentHashMap<>();
+
+    public LoggedPageFile( File pageCacheFile ) throws IOException
+    {
+        this( pageCacheFile, DEFAULT_LOG_LIMIT );
+    }
+
+    /**
+     * @param logLimit the size in bytes the log may grow to before a commit checkpoints.
+     */
+    public LoggedPageFile( File pageCacheFile, long logLimit ) throws IOException
+    {
+        super( pageCacheFile );
+        this.logLimit = logLimit;
+        log = FileChannel.open( new File( pageCacheFile.getPath() + LOG_SUFFIX ).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE );
+        recover();
+    }
+
+    @Override
+    void writeBytes( long page, byte[] bytes )
+    {
+        byte[] image = new byte[Math.min( bytes.length, PAGE_SIZE )];
+        System.arraycopy( bytes, 0, image, 0, image.length );
+        pendingLock.readLock().lock();
+        try
+        {
+            pending.put( page, image );
+            written.incrementAndGet();
+        }
+        finally
+        {
+            pendingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    void readInto( long page, byte[] bytes )
+    {
+        byte[] image;
+        pendingLock.readLock().lock();
+        try
+        {
+            image = pending.get( page );
+            if ( image == null )
+            {
+                image = sealed.get( page );
+            }
+            if ( image == null )
+            {
+                image = committing.get( page );
+            }
+        }
+        finally
+        {
+            pendingLock.readLock().unlock();
+        }
+        if ( image == null )
+        {
+            super.readInto( page, bytes );
+        }
+        else
+        {
+            System.arraycopy( image, 0, bytes, 0, Math.min( image.length, bytes.length ) );
+        }
+    }
+
+    @Override
+    public void beginChange()
+    {
+        changes.readLock().lock();
+    }
+
+    @Override
+    public void endChange()
+    {
+        changes.readLock().unlock();
+    }
+
+    /**
+     * Makes every page written before the call durable, unless it belongs to a change which is still in progress, in
+     * which case the commit waits for the change to end. Returns without forcing anything if a commit of another
+     * thread already covered the pages.
+     *
+     * @throws IllegalStateException if called inside a change, which could never end.
+     */
+    @Override
+    public void commit() throws IOException
+    {
+        commit( () ->
+        {
+        } );
+    }
+
+    @Override
+    public void commit( WriteBack writeBack ) throws IOException
+    {
+        if ( changes.getReadHoldCount() > 0 )
+        {
+            throw new IllegalStateException( "Can not commit inside a change." );
+        }
+        long upTo;
+        changes.writeLock().lock();
+        try
+        {
+            writeBack.run();
+            upTo = seal();
+        }
+        finally
+        {
+            changes.writeLock().unlock();
+        }
+        if ( committed >= upTo )
+        {
+            return;
+        }
+        synchronized ( commitLock )
+        {
+            if ( committed >= upTo )
+            {
+                return;
+            }
+            Map<Long, byte[]> group;
+            long groupEnd;
+            pendingLock.writeLock().lock();
+            try
+            {
+                group = sealed;
+                groupEnd = sealedUpTo;
+                committing = group;
+                sealed = new ConcurrentHashMap<>();
+            }
+            finally
+            {
+                pendingLock.writeLock().unlock();
+            }
+            try
+            {
+                append( group );
+                log.force( false );
+                logForces.incrementAndGet();
+            }
+            catch ( IOException e )
+            {
+                restore( group );
+                throw e;
+            }
+            try
+            {
+                for ( Map.Entry<Long, byte[]> page : group.entrySet() )
+                {
+                    super.writeBytes( page.getKey(), page.getValue() );
+                }
+            }
+            catch ( UncheckedIOException e )
+            {
+                // The group is in the log, so it is not lost, but the log has to be kept until it is in the file.
+                writeBackFailed = true;
+                restore( group );
+                throw e.getCause();
+            }
+            writeBackFailed = false;
+            committing = new ConcurrentHashMap<>();
+            committed = groupEnd;
+            if ( logEnd >= logLimit )
+            {
+                force();
+            }
+        }
+    }
+
+    /**
+     * Moves the written pages to the ones the next group is made of. Only called while no change is in progress.
+     *
+     * @return the number of writes the next group covers.
+     */
+    private long seal()
+    {
+        pendingLock.writeLock().lock();
+        try
+        {
+            if ( !pending.isEmpty() )
+            {
+                sealed.putAll( pending );
+                pending = new ConcurrentHashMap<>();
+            }
+            sealedUpTo = written.get();
+            return sealedUpTo;
+        }
+        finally
+        {
+            pendingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the committed pages into the file and empties the log, as everything in it is in the file now. Pages
+     * which are not committed yet are left as they are.
+     *
+     * @throws IOException if the pages of the last commit could not be written into the file. The log is kept then.
+     */
+    @Override
+    public void force() throws IOException
+    {
+        synchronized ( commitLock )
+        {
+            if ( writeBackFailed )
+            {
+                throw new IOException( "Committed pages could not be written into the file, the log is kept until a " +
+                        "commit writes them." );
+            }
+            super.force();
+            log.truncate( 0 );
+            log.force( false );
+            logEnd = 0;
+        }
+    }
+
+    /**
+     * Commits, checkpoints and closes the file and its log. No change may be in progress.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        commit();
+        super.close();
+        log.close();
+    }
+
+    /**
+     * @return the number of threads waiting for the changes in progress to end, like commits which seal the pages.
+     */
+    int threadsWaitingForChanges()
+    {
+        return changes.getQueueLength();
+    }
+
+    /**
+     * Puts the pages of a group which could not be logged or written into the file back, unless they were written
+     * again in the meantime.
+     */
+    private void restore( Map<Long, byte[]> group )
+    {
+        pendingLock.writeLock().lock();
+        try
+        {
+            for ( Map.Entry<Long, byte[]> page : group.entrySet() )
+            {
+                sealed.putIfAbsent( page.getKey(), page.getValue() );
+            }
+            committing = new ConcurrentHashMap<>();
+        }
+        finally
+        {
+            pendingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the group at the end of the log, a buffer full of records at a time. A group which failed half way is
+     * overwritten by the next one, so the log never holds a torn group in front of a complete one.
+     */
+    private void append( Map<Long, byte[]> group ) throws IOException
+    {
+        ByteBuffer records = ByteBuffer.allocate( Math.max( LOG_BUFFER_SIZE, PAGE_RECORD_HEADER + PAGE_SIZE ) );
+        CRC32 checksum = new CRC32();
+        long position = logEnd;
+        for ( Map.Entry<Long, byte[]> page : group.entrySet() )
+        {
+            byte[] image = page.getValue();
+            if ( records.remaining() < PAGE_RECORD_HEADER + image.length )
+            {
+                position = write( records, position );
+            }
+            int start = records.position();
+            records.put( PAGE_RECORD );
+            records.putLong( page.getKey() );
+            records.putInt( image.length );
+            records.put( image );
+            checksum.update( records.array(), start, records.position() - start );
+        }
+        if ( records.remaining() < COMMIT_RECORD_LENGTH )
+        {
+            position = write( records, position );
+        }
+        records.put( COMMIT_RECORD );
+        records.putInt( group.size() );
+        records.putLong( checksum.getValue() );
+        logEnd = write( records, position );
+    }
+
+    /**
+     * Writes the records in the buffer to the log at the given position, and empties the buffer.
+     *
+     * @return the position after the records.
+     */
+    private long write( ByteBuffer records, long position ) throws IOException
+    {
+        records.flip();
+        while ( records.hasRemaining() )
+        {
+            position += log.write( records, position );
+        }
+        records.clear();
+        return position;
+    }
+
+    /**
+     * Writes the pages of every complete group in the log into the file, then empties the log. The log is read one
+     * record at a time, and only the pages of the group being read are held in memory.
+     */
+    private void recover() throws IOException
+    {
+        // Not closed, that would close the log.
+        DataInputStream records = new DataInputStream(
+                new BufferedInputStream( Channels.newInputStream( log.position( 0 ) ), LOG_BUFFER_SIZE ) );
+        ByteBuffer header = ByteBuffer.allocate( PAGE_RECORD_HEADER );
+        CRC32 checksum = new CRC32();
+        List<Long> pages = new ArrayList<>();
+        List<byte[]> images = new ArrayList<>();
+        try
+        {
+            while ( true )
+            {
+                byte type = records.readByte();
+                if ( type == PAGE_RECORD )
+                {
+                    long page = records.readLong();
+                    int length = records.readInt();
+                    if ( length < 0 || length > PAGE_SIZE )
+                    {
+                        break;
+                    }
+                    byte[] image = new byte[length];
+                    records.readFully( image );
+                    header.clear();
+                    header.put( type ).putLong( page ).putInt( length );
+                    checksum.update( header.array(), 0, PAGE_RECORD_HEADER );
+                    checksum.update( image );
+                    pages.add( page );
+                    images.add( image );
+                }
+                else if ( type == COMMIT_RECORD )
+                {
+                    int count = records.readInt();
+                    long expected = records.readLong();
+                    if ( count != pages.size() || checksum.getValue() != expected )
+                    {
+                        break;
+                    }
+                    for ( int i = 0; i < pages.size(); i++ )
+                    {
+                        super.writeBytes( pages.get( i ), images.get( i ) );
+                    }
+                    pages.clear();
+                    images.clear();
+                    checksum.reset();
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch ( EOFException e )
+        {
+            // The log ends in the middle of a group, which was never committed.
+        }
+        super.force();
+        log.truncate( 0 );
+        log.force( false );
+    }
+}
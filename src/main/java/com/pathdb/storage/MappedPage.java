@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A page served by the {@link MappedPageFile}. The page is a view directly on the mapped file, so reading from it
+ * does not copy any bytes, and writes to the buffer end up in the file.
+ */
+public class MappedPage implements Page
+{
+    private final long pageId;
+    private final ByteBuffer buffer;
+
+    MappedPage( long pageId, ByteBuffer buffer )
+    {
+        this.pageId = pageId;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public long getPageId()
+    {
+        return pageId;
+    }
+
+    @Override
+    public byte[] getByteRepresentation()
+    {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+
+    /**
+     * @return a view on the mapped bytes of this page, positioned at the start of the page.
+     */
+    public ByteBuffer getBuffer()
+    {
+        return buffer.duplicate();
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A page file which maps the file into memory instead of going through a page cache. The file is mapped in segments
+ * of {@link #PAGES_PER_SEGMENT} pages, new segments are mapped when a page beyond the last segment is touched.
+ * Pages are handed out as slices of the mapped segments, so reading a page never copies it.
+ * Nothing is guaranteed to be on disk until {@link #force()} is called. Mapping a segment grows the file to the end of
+ * the segment, {@link #close()} cuts it back to the end of the last page handed out.
+ */
+public class MappedPageFile<P extends Page> implements PageFile<P>
+{
+    public static final int PAGE_SIZE = PersistedPageFile.PAGE_SIZE;
+    public static final int PAGES_PER_SEGMENT = 8192;
+    private static final long SEGMENT_SIZE = (long) PAGE_SIZE * PAGES_PER_SEGMENT;
+
+    private final FileChannel channel;
+    private final AtomicLong length;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    public MappedPageFile( File file ) throws IOException
+    {
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE );
+        length = new AtomicLong( channel.size() );
+        long existingSegments = (channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        if ( existingSegments > 0 )
+        {
+            segment( existingSegments - 1 );
+        }
+    }
+
+    @Override
+    public int writePage( P page )
+    {
+        writeBytes( page.getPageId(), page.getByteRepresentation() );
+        return (int) page.getPageId();
+    }
+
+    @Override
+    public Page readPage( int pageId )
+    {
+        return new MappedPage( pageId, getPage( pageId ) );
+    }
+
+    /**
+     * Returns a view on the given page, backed by the mapped file. The view is positioned at the start of the page and
+     * has the size of one page.
+     *
+     * @throws UncheckedIOException if the segment holding the page could not be mapped.
+     */
+    public ByteBuffer getPage( long pageId )
+    {
+        MappedByteBuffer segment;
+        try
+        {
+            segment = segment( pageId / PAGES_PER_SEGMENT );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Could not map page " + pageId, e );
+        }
+        length.accumulateAndGet( (pageId + 1) * PAGE_SIZE, Math::max );
+        int start = (int) ((pageId % PAGES_PER_SEGMENT) * PAGE_SIZE);
+        ByteBuffer page = segment.duplicate();
+        page.position( start );
+        page.limit( start + PAGE_SIZE );
+        return page.slice();
+    }
+
+    void writeBytes( long page, byte[] bytes )
+    {
+        getPage( page ).put( bytes, 0, Math.min( bytes.length, PAGE_SIZE ) );
+    }
+
+    byte[] getBytes( long page )
+    {
+        byte[] bytes = new byte[PAGE_SIZE];
+        getPage( page ).get( bytes );
+        return bytes;
+    }
+
+    /**
+     * Flushes all modified pages of the mapped segments to disk. Should be called on checkpoint.
+     */
+    public synchronized void force()
+    {
+        for ( MappedByteBuffer segment : segments )
+        {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forces the file and cuts off the part of the last segment beyond the last page handed out. No page handed out
+     * before may be used afterwards.
+     */
+    public synchronized void close() throws IOException
+    {
+        force();
+        segments = new MappedByteBuffer[0];
+        channel.truncate( length.get() );
+        channel.close();
+    }
+
+    private MappedByteBuffer segment( long segmentIndex ) throws IOException
+    {
+        MappedByteBuffer[] current = segments;
+        if ( segmentIndex < current.length )
+        {
+            return current[(int) segmentIndex];
+        }
+        return growTo( (int) segmentIndex );
+    }
+
+    private synchronized MappedByteBuffer growTo( int segmentIndex ) throws IOException
+    {
+        if ( segmentIndex >= segments.length )
+        {
+            MappedByteBuffer[] grown = Arrays.copyOf( segments, segmentIndex + 1 );
+            for ( int i = segments.length; i < grown.length; i++ )
+            {
+                // Mapping read-write beyond the end of the file grows the file.
+                grown[i] = channel.map( FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE );
+            }
+            segments = grown;
+        }
+        return segments[segmentIndex];
+    }
+}
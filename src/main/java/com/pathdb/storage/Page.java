@@ -10,4 +10,6 @@ package com.pathdb.storage;
 public interface Page
 {
     long getPageId();
+
+    byte[] getByteRepresentation();
 }
@@ -0,0 +1,600 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+import static com.pathdb.storage.PersistedPageFile.PAGE_SIZE;
+
+/**
+ * A fixed size pool of page frames in front of a {@link PersistedPageFile}.
+ * <p>
+ * The frames are split over a number of shards, and a page always lives in the shard picked by its page id. Pinning
+ * a page which is in the pool takes no lock, it only bumps the pin count of its frame. A miss takes the lock of its
+ * shard to pick a frame and enter the page into the page table, but reads the page and writes back the evicted one
+ * without holding it. Within a shard, frames are evicted with the CLOCK algorithm. Dirty frames are written back when
+ * they are evicted or on {@link #flush()}. A frame stays dirty until a write back succeeded, so a failed write back
+ * fails the pin or flush which ran it, and the page is written back again later.
+ * <p>
+ * A page must be pinned before its frame is used, and unpinned when done. A pinned frame is never evicted. The frame
+ * returned by {@link #pin(long)} is shared by everyone who pinned the page, so only absolute get and put methods
+ * should be used on it.
+ * <p>
+ * {@link #read(long, ByteBuffer)} and {@link #write(long, byte[])} copy whole pages, and never see half of a write:
+ * every frame has a latch, which writes take exclusively and reads take optimistically, copying again under it if a
+ * write ran meanwhile.
+ * <p>
+ * When created with a {@link SlabAllocator}, the frames are held off-heap.
+ */
+public class PageBufferPool
+{
+    public static final int DEFAULT_STRIPES = 16;
+    private static final int NO_FRAME = -1;
+    private static final long NO_PAGE = -1;
+    /**
+     * Pin count of a frame which is being replaced. Nobody can pin it until its new page is read.
+     */
+    private static final int RESERVED = -1;
+
+    private final PersistedPageFile pageFile;
+    private final SlabAllocator allocator;
+    private final Shard[] shards;
+    // The page file only moves bytes through arrays, off-heap frames go through these.
+    private final ThreadLocal<byte[]> ioScratch = ThreadLocal.withInitial( () -> new byte[PAGE_SIZE] );
+
+    public PageBufferPool( PersistedPageFile pageFile, int frames )
+    {
+        this( pageFile, frames, DEFAULT_STRIPES );
+    }
+
+    public PageBufferPool( PersistedPageFile pageFile, int frames, int stripes )
+    {
+        this( pageFile, frames, stripes, null );
+    }
+
+    /**
+     * Creates a pool of exactly the given number of frames. With fewer frames than stripes, there is one shard per
+     * frame.
+     *
+     * @param allocator allocator for off-heap frames, or null to keep the frames on the heap.
+     */
+    public PageBufferPool( PersistedPageFile pageFile, int frames, int stripes, SlabAllocator allocator )
+    {
+        if ( frames < 1 || stripes < 1 )
+        {
+            throw new IllegalArgumentException( "A pool needs at least one frame and one stripe, got " + frames +
+                    " frames and " + stripes + " stripes." );
+        }
+        this.pageFile = pageFile;
+        this.allocator = allocator;
+        int shardCount = Math.min( frames, stripes );
+        this.shards = new Shard[shardCount];
+        for ( int i = 0; i < shardCount; i++ )
+        {
+            shards[i] = new Shard( frames / shardCount + (i < frames % shardCount ? 1 : 0) );
+        }
+    }
+
+    /**
+     * Pins the page, reading it from the page file when it is not in the pool yet.
+     *
+     * @return the frame holding the page.
+     */
+    public ByteBuffer pin( long pageId ) throws IOException
+    {
+        return shardFor( pageId ).pin( pageId ).buffer;
+    }
+
+    /**
+     * Releases a pin taken with {@link #pin(long)}.
+     *
+     * @param dirty true if the frame was modified while it was pinned.
+     */
+    public void unpin( long pageId, boolean dirty )
+    {
+        shardFor( pageId ).unpin( pageId, dirty );
+    }
+
+    /**
+     * Copies the page into dest, starting at the position of dest.
+     */
+    public void read( long pageId, ByteBuffer dest ) throws IOException
+    {
+        Frame frame = shardFor( pageId ).pin( pageId );
+        try
+        {
+            int start = dest.position();
+            long stamp = frame.latch.tryOptimisticRead();
+            copy( frame.buffer, dest );
+            if ( !frame.latch.validate( stamp ) )
+            {
+                dest.position( start );
+                stamp = frame.latch.readLock();
+                try
+                {
+                    copy( frame.buffer, dest );
+                }
+                finally
+                {
+                    frame.latch.unlockRead( stamp );
+                }
+            }
+        }
+        finally
+        {
+            unpin( pageId, false );
+        }
+    }
+
+    /**
+     * Reads one long of the page, as of the last completed write.
+     */
+    public long readLong( long pageId, int offset ) throws IOException
+    {
+        Frame frame = shardFor( pageId ).pin( pageId );
+        try
+        {
+            long stamp = frame.latch.tryOptimisticRead();
+            long value = frame.buffer.getLong( offset );
+            if ( frame.latch.validate( stamp ) )
+            {
+                return value;
+            }
+            stamp = frame.latch.readLock();
+            try
+            {
+                return frame.buffer.getLong( offset );
+            }
+            finally
+            {
+                frame.latch.unlockRead( stamp );
+            }
+        }
+        finally
+        {
+            unpin( pageId, false );
+        }
+    }
+
+    /**
+     * Copies src into the frame of the page, and marks the frame as dirty.
+     */
+    public void write( long pageId, byte[] src ) throws IOException
+    {
+        Frame frame = shardFor( pageId ).pin( pageId );
+        try
+        {
+            long stamp = frame.latch.writeLock();
+            try
+            {
+                ByteBuffer view = frame.buffer.duplicate();
+                view.clear();
+                view.put( src, 0, Math.min( src.length, PAGE_SIZE ) );
+            }
+            finally
+            {
+                frame.latch.unlockWrite( stamp );
+            }
+        }
+        finally
+        {
+            unpin( pageId, true );
+        }
+    }
+
+    private static void copy( ByteBuffer frame, ByteBuffer dest )
+    {
+        if ( frame.hasArray() )
+        {
+            dest.put( frame.array(), 0, PAGE_SIZE );
+        }
+        else
+        {
+            ByteBuffer view = frame.duplicate();
+            view.clear();
+            dest.put( view );
+        }
+    }
+
+    /**
+     * Writes every dirty frame back to the page file.
+     */
+    public void flush() throws IOException
+    {
+        for ( Shard shard : shards )
+        {
+            shard.flush();
+        }
+    }
+
+    private Shard shardFor( long pageId )
+    {
+        long hash = pageId * 0x9E3779B97F4A7C15L;
+        return shards[(int) ((hash >>> 32) % shards.length)];
+    }
+
+    private void readFrame( long pageId, ByteBuffer frame ) throws IOException
+    {
+        try
+        {
+            if ( frame.hasArray() )
+            {
+                pageFile.readInto( pageId, frame.array() );
+            }
+            else
+            {
+                byte[] scratch = ioScratch.get();
+                pageFile.readInto( pageId, scratch );
+                ByteBuffer view = frame.duplicate();
+                view.clear();
+                view.put( scratch );
+            }
+        }
+        catch ( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the frame back to the page file, and marks it clean up to the modifications made before the write.
+     */
+    private void writeBack( Frame frame, long pageId ) throws IOException
+    {
+        long modifications;
+        long stamp = frame.latch.readLock();
+        try
+        {
+            modifications = frame.modifications.get();
+            if ( frame.buffer.hasArray() )
+            {
+                pageFile.writeBytes( pageId, frame.buffer.array() );
+            }
+            else
+            {
+                byte[] scratch = ioScratch.get();
+                ByteBuffer view = frame.buffer.duplicate();
+                view.clear();
+                view.get( scratch );
+                pageFile.writeBytes( pageId, scratch );
+            }
+        }
+        catch ( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            frame.latch.unlockRead( stamp );
+        }
+        frame.writtenBack = modifications;
+    }
+
+    /**
+     * A frame and its state. The page id of a frame only changes while it is {@link #RESERVED}, so once a pin is
+     * taken, the page id read afterwards stays valid until the pin is released.
+     */
+    private static class Frame
+    {
+        final int index;
+        final ByteBuffer buffer;
+        final AtomicInteger pins = new AtomicInteger();
+        // Taken exclusively by whole page writes, so whole page reads never see half of one.
+        final StampedLock latch = new StampedLock();
+        volatile long pageId = NO_PAGE;
+        // Counts the unpins of the frame as modified. Modifications made while the frame is written back are after
+        // the count the write back started from, so they keep the frame dirty.
+        final AtomicLong modifications = new AtomicLong();
+        volatile long writtenBack = 0;
+        volatile boolean referenced;
+
+        Frame( int index, ByteBuffer buffer )
+        {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Pins the frame if it holds the given page, waiting for a frame which is being replaced.
+         */
+        boolean tryPin( long page )
+        {
+            while ( true )
+            {
+                int count = pins.get();
+                if ( count == RESERVED )
+                {
+                    if ( pageId != page )
+                    {
+                        return false;
+                    }
+                    Thread.yield();
+                }
+                else if ( pins.compareAndSet( count, count + 1 ) )
+                {
+                    if ( pageId == page )
+                    {
+                        referenced = true;
+                        return true;
+                    }
+                    pins.decrementAndGet();
+                    return false;
+                }
+            }
+        }
+
+        boolean isDirty()
+        {
+            return modifications.get() != writtenBack;
+        }
+    }
+
+    /**
+     * One stripe of the pool. The page table is a chained hash table stored in int arrays, so looking up or replacing
+     * a page never allocates. The table is only changed under the lock of the shard, and read without it, so a lookup
+     * without the lock may miss a page and has to be confirmed by pinning the frame it found.
+     */
+    private class Shard
+    {
+        private final Frame[] frames;
+        private final int[] buckets;
+        private final int[] nextInBucket;
+        // Two flushes writing the same frame could reach the file in the wrong order.
+        private final Object flushLock = new Object();
+        private int clockHand = 0;
+
+        Shard( int frameCount )
+        {
+            frames = new Frame[frameCount];
+            for ( int i = 0; i < frameCount; i++ )
+            {
+                frames[i] = new Frame( i,
+                        allocator == null ? ByteBuffer.allocate( PAGE_SIZE ) : allocator.allocate( PAGE_SIZE ) );
+            }
+            buckets = new int[Integer.highestOneBit( frameCount * 2 - 1 ) << 1];
+            Arrays.fill( buckets, NO_FRAME );
+            nextInBucket = new int[frameCount];
+        }
+
+        Frame pin( long pageId ) throws IOException
+        {
+            while ( true )
+            {
+                int frame = lookup( pageId );
+                if ( frame != NO_FRAME && frames[frame].tryPin( pageId ) )
+                {
+                    return frames[frame];
+                }
+                Frame loaded = load( pageId );
+                if ( loaded != null )
+                {
+                    return loaded;
+                }
+            }
+        }
+
+        void unpin( long pageId, boolean modified )
+        {
+            int index = lookup( pageId );
+            if ( index == NO_FRAME || frames[index].pageId != pageId )
+            {
+                synchronized ( this )
+                {
+                    index = lookup( pageId );
+                }
+            }
+            Frame frame = index == NO_FRAME ? null : frames[index];
+            if ( frame == null || frame.pins.get() <= 0 )
+            {
+                throw new IllegalStateException( "Page " + pageId + " is not pinned." );
+            }
+            if ( modified )
+            {
+                // Counted before the pin is released, so whoever evicts the frame sees it.
+                frame.modifications.incrementAndGet();
+            }
+            frame.pins.decrementAndGet();
+        }
+
+        void flush() throws IOException
+        {
+            synchronized ( flushLock )
+            {
+                for ( Frame frame : frames )
+                {
+                    long pageId = frame.pageId;
+                    if ( frame.isDirty() && pageId != NO_PAGE && frame.tryPin( pageId ) )
+                    {
+                        try
+                        {
+                            if ( frame.isDirty() )
+                            {
+                                writeBack( frame, pageId );
+                            }
+                        }
+                        finally
+                        {
+                            frame.pins.decrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the page into a free or evicted frame and pins it.
+         *
+         * @return the pinned frame, or null if the page was entered by another thread meanwhile.
+         */
+        private Frame load( long pageId ) throws IOException
+        {
+            Frame frame;
+            long evicted;
+            boolean writeBack;
+            synchronized ( this )
+            {
+                if ( lookup( pageId ) != NO_FRAME )
+                {
+                    return null;
+                }
+                frame = reserve();
+                if ( frame == null )
+                {
+                    Thread.yield();
+                    return null;
+                }
+                evicted = frame.pageId;
+                writeBack = frame.isDirty();
+                if ( !writeBack )
+                {
+                    replace( frame, pageId );
+                }
+            }
+            if ( writeBack )
+            {
+                // The frame still holds the evicted page meanwhile, so nobody reads that page from the file before
+                // it is written back. If that fails, the page stays in the frame, dirty.
+                try
+                {
+                    writeBack( frame, evicted );
+                }
+                catch ( IOException | RuntimeException e )
+                {
+                    frame.pins.set( 0 );
+                    throw e;
+                }
+                synchronized ( this )
+                {
+                    if ( lookup( pageId ) != NO_FRAME )
+                    {
+                        frame.pins.set( 0 );
+                        return null;
+                    }
+                    replace( frame, pageId );
+                }
+            }
+            try
+            {
+                readFrame( pageId, frame.buffer );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                synchronized ( this )
+                {
+                    replace( frame, NO_PAGE );
+                }
+                frame.pins.set( 0 );
+                throw e;
+            }
+            frame.referenced = true;
+            frame.pins.set( 1 );
+            return frame;
+        }
+
+        /**
+         * Picks a frame with the clock and reserves it.
+         *
+         * @return the reserved frame, or null if every unpinned frame is being replaced by another thread right now.
+         */
+        private Frame reserve()
+        {
+            boolean busy = false;
+            // Two full turns of the clock clear every reference bit, so a victim is found unless all frames are pinned.
+            for ( int i = 0; i < frames.length * 2; i++ )
+            {
+                Frame frame = frames[clockHand];
+                clockHand = (clockHand + 1) % frames.length;
+                int count = frame.pins.get();
+                if ( count != 0 )
+                {
+                    busy |= count == RESERVED;
+                    continue;
+                }
+                if ( frame.referenced )
+                {
+                    frame.referenced = false;
+                    continue;
+                }
+                if ( frame.pins.compareAndSet( 0, RESERVED ) )
+                {
+                    return frame;
+                }
+            }
+            if ( busy )
+            {
+                return null;
+            }
+            throw new IllegalStateException( "All " + frames.length + " frames of the shard are pinned." );
+        }
+
+        private void replace( Frame frame, long pageId )
+        {
+            if ( frame.pageId != NO_PAGE )
+            {
+                removeFromBucket( frame.index );
+            }
+            frame.pageId = pageId;
+            if ( pageId != NO_PAGE )
+            {
+                addToBucket( frame.index );
+            }
+        }
+
+        private int bucketOf( long pageId )
+        {
+            return (int) (pageId ^ (pageId >>> 32)) & (buckets.length - 1);
+        }
+
+        /**
+         * Looks the page up, also without holding the lock. A chain changed while it is followed can lead anywhere,
+         * so no more steps than there are frames are taken.
+         */
+        private int lookup( long pageId )
+        {
+            int frame = buckets[bucketOf( pageId )];
+            for ( int steps = 0; frame != NO_FRAME && steps < frames.length; steps++ )
+            {
+                if ( frames[frame].pageId == pageId )
+                {
+                    return frame;
+                }
+                frame = nextInBucket[frame];
+            }
+            return NO_FRAME;
+        }
+
+        private void addToBucket( int frame )
+        {
+            int bucket = bucketOf( frames[frame].pageId );
+            nextInBucket[frame] = buckets[bucket];
+            buckets[bucket] = frame;
+        }
+
+        private void removeFromBucket( int frame )
+        {
+            int bucket = bucketOf( frames[frame].pageId );
+            if ( buckets[bucket] == frame )
+            {
+                buckets[bucket] = nextInBucket[frame];
+                return;
+            }
+            int previous = buckets[bucket];
+            while ( nextInBucket[previous] != frame )
+            {
+                previous = nextInBucket[previous];
+            }
+            nextInBucket[previous] = nextInBucket[frame];
+        }
+    }
+}
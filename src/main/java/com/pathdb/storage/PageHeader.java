@@ -17,14 +17,18 @@ public interface PageHeader
      * contain child node ids and not just keys.
      * (8) long - the id to the next node, the sibling node.
      * (8) long - the id to the previous node, the preceding node.
+     * (8) long - the version of the node. It is odd while the node is being changed, and grows with every change, so
+     * a reader which sees the same even version before and after reading the node has read it whole.
+     * Files written before the version was added have 25 byte headers and can not be read with this layout.
      **/
     int BYTE_POSITION_NODE_TYPE = 0;
     int BYTE_POSITION_KEY_LENGTH = 1;
     int BYTE_POSITION_KEY_COUNT = 5;
     int BYTE_POSITION_SIBLING_ID = 9;
     int BYTE_POSITION_PRECEDING_ID = 17;
+    int BYTE_POSITION_VERSION = 25;
     int LEAF_FLAG = 1;
-    int NODE_HEADER_LENGTH = 1 + 4 + 4 + 8 + 8;
+    int NODE_HEADER_LENGTH = 1 + 4 + 4 + 8 + 8 + 8;
 
     boolean isLeafNode();
 
@@ -48,6 +52,10 @@ public interface PageHeader
 
     void setPrecedingId( long precedingId );
 
+    long getVersion();
+
+    void setVersion( long version );
+
     void initializeLeafNode();
 
     void initializeInternalNode();
@@ -9,6 +9,7 @@ package com.pathdb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 import org.neo4j.io.fs.DefaultFileSystemAbstraction;
 import org.neo4j.io.pagecache.PageCache;
@@ -45,19 +46,21 @@ public class PersistedPageFile<P extends Page> implements PageFile<P>
         return new Page(bytes);
     }
 
-    void writeBytes( int page, byte[] bytes )
+    /**
+     * @throws UncheckedIOException if the page could not be written.
+     */
+    void writeBytes( long page, byte[] bytes )
     {
         PageCursor io = null;
         try
         {
-            io = pagedFile.io( page, PagedFile.PF_NO_FAULT );
+            io = pagedFile.io( page, PagedFile.PF_SHARED_WRITE_LOCK );
             io.next( page );
             io.putBytes( bytes );
         }
         catch ( IOException e )
         {
-            //todo The write failed. What should happen then?
-            e.printStackTrace();
+            throw new UncheckedIOException( "Could not write page " + page + ".", e );
         }
         finally
         {
@@ -71,17 +74,33 @@ public class PersistedPageFile<P extends Page> implements PageFile<P>
     byte[] getBytes( long page )
     {
         byte[] bytes = new byte[PAGE_SIZE];
+        readInto( page, bytes );
+        return bytes;
+    }
+
+    /**
+     * Reads the page into the given array, so callers which keep their own buffers do not allocate per read.
+     *
+     * @throws UncheckedIOException if the page could not be read.
+     */
+    void readInto( long page, byte[] bytes )
+    {
         PageCursor io = null;
         try
         {
             io = pagedFile.io( page, PagedFile.PF_SHARED_READ_LOCK );
             io.next( page );
-            io.getBytes( bytes ); //todo obviously needs review
+            // Shared read locks are optimistic, a read which overlapped a write has to be done again.
+            do
+            {
+                io.setOffset( 0 );
+                io.getBytes( bytes );
+            }
+            while ( io.shouldRetry() );
         }
         catch ( IOException e )
         {
-            //todo The write failed. What should happen then?
-            e.printStackTrace();
+            throw new UncheckedIOException( "Could not read page " + page + ".", e );
         }
         finally
         {
@@ -90,6 +109,63 @@ public class PersistedPageFile<P extends Page> implements PageFile<P>
                 io.close();
             }
         }
-        return bytes;
+    }
+
+    /**
+     * Flushes all pages written so far to disk.
+     */
+    public void force() throws IOException
+    {
+        pagedFile.flushAndForce();
+    }
+
+    /**
+     * Forces the file and closes it, together with the page cache it was mapped by.
+     */
+    public void close() throws IOException
+    {
+        force();
+        pagedFile.close();
+        pageCache.close();
+    }
+
+    /**
+     * Makes all pages written so far durable. Here that forces the whole file, {@link LoggedPageFile} only forces
+     * its log.
+     */
+    public void commit() throws IOException
+    {
+        force();
+    }
+
+    /**
+     * Commits like {@link #commit()}, after writing back the pages held above the page file, like in a buffer pool.
+     * A logged page file writes them back while no change is in progress, so the commit ends between changes.
+     */
+    public void commit( WriteBack writeBack ) throws IOException
+    {
+        writeBack.run();
+        commit();
+    }
+
+    /**
+     * Marks the start of a change spread over several pages, which has to become durable as a whole. The change is
+     * ended with {@link #endChange()} by the same thread, once all of its pages are written to the page file, or to a
+     * buffer pool which commits write back. Does nothing here, as forcing the file is not atomic anyway.
+     */
+    public void beginChange()
+    {
+    }
+
+    public void endChange()
+    {
+    }
+
+    /**
+     * Writes pages held above the page file down to it.
+     */
+    public interface WriteBack
+    {
+        void run() throws IOException;
     }
 }
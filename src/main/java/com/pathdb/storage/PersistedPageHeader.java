@@ -66,6 +66,16 @@ public class PersistedPageHeader implements PageHeader
         cursor.putLong( BYTE_POSITION_PRECEDING_ID, precedingId );
     }
 
+    public long getVersion()
+    {
+        return cursor.getLong( BYTE_POSITION_VERSION );
+    }
+
+    public void setVersion( long version )
+    {
+        cursor.putLong( BYTE_POSITION_VERSION, version );
+    }
+
     public void initializeLeafNode()
     {
         cursor.putByte( PersistedPageHeader.BYTE_POSITION_NODE_TYPE, (byte) 1 );
@@ -73,6 +83,7 @@ public class PersistedPageHeader implements PageHeader
         cursor.putInt( PersistedPageHeader.BYTE_POSITION_KEY_COUNT, 0 );
         cursor.putLong( PersistedPageHeader.BYTE_POSITION_SIBLING_ID, -1 );
         cursor.putLong( PersistedPageHeader.BYTE_POSITION_PRECEDING_ID, -1 );
+        cursor.putLong( PersistedPageHeader.BYTE_POSITION_VERSION, 0 );
     }
 
     public void initializeInternalNode()
@@ -82,5 +93,6 @@ public class PersistedPageHeader implements PageHeader
         cursor.putInt( PersistedPageHeader.BYTE_POSITION_KEY_COUNT, 0 );
         cursor.putLong( PersistedPageHeader.BYTE_POSITION_SIBLING_ID, -1 );
         cursor.putLong( PersistedPageHeader.BYTE_POSITION_PRECEDING_ID, -1 );
+        cursor.putLong( PersistedPageHeader.BYTE_POSITION_VERSION, 0 );
     }
 }
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.pathdb.storage.PersistedPageFile.PAGE_SIZE;
+
+/**
+ * Hands out off-heap buffers for page frames and scratch space. Memory is reserved from the operating system in large
+ * direct slabs, which are cut into buffers of whole pages. Released buffers are kept on a free list per size and
+ * handed out again, so the slabs are never given back and the heap only holds the small buffer objects.
+ * <p>
+ * Every buffer starts at a page boundary relative to the start of its slab.
+ */
+public class SlabAllocator
+{
+    public static final int DEFAULT_SLAB_SIZE = 1024 * PAGE_SIZE;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final Map<Integer,ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+    private ByteBuffer currentSlab;
+    private long reservedBytes = 0;
+
+    public SlabAllocator()
+    {
+        this( DEFAULT_SLAB_SIZE );
+    }
+
+    public SlabAllocator( int slabSize )
+    {
+        this.slabSize = roundToPages( slabSize );
+    }
+
+    /**
+     * @return a direct buffer of at least the given size, rounded up to whole pages.
+     */
+    public synchronized ByteBuffer allocate( int size )
+    {
+        int capacity = roundToPages( size );
+        ArrayDeque<ByteBuffer> free = freeBuffers.get( capacity );
+        if ( free != null && !free.isEmpty() )
+        {
+            ByteBuffer buffer = free.pop();
+            buffer.clear();
+            return buffer;
+        }
+        if ( capacity > slabSize )
+        {
+            // Does not fit in a slab, give it its own.
+            return reserve( capacity );
+        }
+        if ( currentSlab == null || currentSlab.remaining() < capacity )
+        {
+            currentSlab = reserve( slabSize );
+        }
+        currentSlab.limit( currentSlab.position() + capacity );
+        ByteBuffer buffer = currentSlab.slice();
+        currentSlab.position( currentSlab.limit() );
+        currentSlab.limit( currentSlab.capacity() );
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer from {@link #allocate(int)} back, to be reused by a later allocation of the same size.
+     */
+    public synchronized void release( ByteBuffer buffer )
+    {
+        freeBuffers.computeIfAbsent( buffer.capacity(), capacity -> new ArrayDeque<>() ).push( buffer );
+    }
+
+    /**
+     * @return the number of off-heap bytes reserved so far.
+     */
+    public synchronized long reservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    private ByteBuffer reserve( int size )
+    {
+        ByteBuffer slab = ByteBuffer.allocateDirect( size );
+        slabs.add( slab );
+        reservedBytes += size;
+        return slab;
+    }
+
+    private static int roundToPages( int size )
+    {
+        return Math.max( 1, (size + PAGE_SIZE - 1) / PAGE_SIZE ) * PAGE_SIZE;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Reads paths stored as fixed size records of big endian longs, one node id after the other. A binary edge list is a
+ * file of paths with two nodes.
+ */
+public class BinaryPathFileSource extends PathFileSource
+{
+    private final int recordSize;
+
+    public BinaryPathFileSource( Path file, int nodesPerPath ) throws IOException
+    {
+        super( file, nodesPerPath );
+        this.recordSize = nodesPerPath * 8;
+    }
+
+    public static BinaryPathFileSource edgeList( Path file ) throws IOException
+    {
+        return new BinaryPathFileSource( file, 2 );
+    }
+
+    @Override
+    protected boolean readPath( long[] ids ) throws IOException
+    {
+        if ( !fill( recordSize ) )
+        {
+            if ( readBuffer.hasRemaining() )
+            {
+                throw new IOException( "The file ends in the middle of a path, " + readBuffer.remaining() +
+                        " bytes left of a " + recordSize + " byte record." );
+            }
+            return false;
+        }
+        for ( int i = 1; i <= nodesPerPath; i++ )
+        {
+            ids[i] = readBuffer.getLong();
+        }
+        return true;
+    }
+}
@@ -9,6 +9,10 @@ package com.pathdb.util;
 
 import java.io.IOException;
 
+/**
+ * A source of keys for bulk loading, handed out a page at a time. A page holds whole keys back to back, each key as
+ * big endian longs, and is never larger than the key space of a leaf.
+ */
 public interface BulkLoadDataSource
 {
 
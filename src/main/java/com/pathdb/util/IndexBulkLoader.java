@@ -7,16 +7,14 @@
 
 package com.pathdb.util;
 
+import com.pathdb.pageCacheSort.Sorter;
 import com.pathdb.pathIndex.tree.IndexInsertion;
 import com.pathdb.pathIndex.tree.IndexTree;
-import com.pathdb.pathIndex.tree.TreeNodeIDManager;
 import com.pathdb.storage.DiskCache;
 import com.pathdb.storage.PersistedPageHeader;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
-
 
 public class IndexBulkLoader
 {
@@ -24,12 +22,11 @@ public class IndexBulkLoader
     public int keySize;
     public long finalLeafPage;
     public int MAX_PAIRS;
-    private int RESERVED_CHILDREN_SPACE;
-    private int currentPair = 0;
-    private long currentParent;
-    private int currentOffset = 0;
-    private long previousLeaf = -1;
-    private ParentBufferWriter parentWriter;
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Share of an internal node filled with children, see {@link InternalLevelBuilder#fillFactor}.
+     */
+    public double internalFillFactor = 1.0;
     public PageProxyCursor cursor;
     public IndexTree tree;
 
@@ -37,146 +34,81 @@ public class IndexBulkLoader
     {
         this.disk = disk;
         this.finalLeafPage = finalPage;
-        TreeNodeIDManager.currentID = finalLeafPage + 1;
         this.tree = new IndexTree( keySize, 0, this.disk );
+        this.tree.nodeIds.skipTo( finalLeafPage + 1 );
         this.keySize = keySize;
         this.MAX_PAIRS = ((DiskCache.PAGE_SIZE - PersistedPageHeader.NODE_HEADER_LENGTH) / ((keySize + 1) * 8)) - 1;
-        this.RESERVED_CHILDREN_SPACE = (MAX_PAIRS + 1) * 8;
-        parentWriter = new ParentBufferWriter();
     }
 
-    public IndexTree run() throws IOException
+    /**
+     * Sorts the keys added to the sorter and builds a tree over them in one write pass. The last merge pass writes the
+     * leaves, and their first keys are collected on the way, so the internal levels are built without reading the
+     * leaves back like {@link #run()} does.
+     */
+    public static IndexTree load( Sorter sorter ) throws IOException
     {
-        long root;
-        PageProxyCursor cursor = this.disk.getCursor( 0 );
-        long firstInternalNode = IndexTree.acquireNewInternalNode( cursor );
-        cursor.goToPage( firstInternalNode );
-        PersistedPageHeader.setKeyLength( cursor, keySize );
-        this.currentParent = firstInternalNode;
-
-        for ( int i = 0; i < finalLeafPage; i++ )
-        {
-            addLeafToParent( cursor, i );
-        }
-        cursor.goToPage( currentParent );
-        cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-        byte[] children = parentWriter.getChildren();
-        cursor.putBytes( children );
-        byte[] keys = parentWriter.getKeys();
-        cursor.putBytes( keys );
-        PersistedPageHeader.setNumberOfKeys( cursor, ((keys.length / keySize) / 8) );
-        //Leaf row and one parent row made.
-        //Build tree above internal nodes.
-        root = buildUpperLeaves( cursor, firstInternalNode );
-        tree.rootNodeId = root;
-        return tree;
+        return load( sorter, 1.0 );
     }
 
-    private void addLeafToParent( PageProxyCursor cursor, long leaf ) throws IOException
+    /**
+     * @param internalFillFactor share of an internal node filled with children. How full the leaves are is set by
+     * {@link Sorter#leafFillFactor}.
+     */
+    public static IndexTree load( Sorter sorter, double internalFillFactor ) throws IOException
     {
-        if ( currentPair > MAX_PAIRS )
-        {
-            cursor.goToPage( this.currentParent );
-            cursor.deferWriting();
-            cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-            cursor.putBytes( parentWriter.getChildren() );
-            cursor.putBytes( parentWriter.getKeys() );
-            PersistedPageHeader.setNumberOfKeys( cursor, MAX_PAIRS );
-            cursor.resumeWriting();
-            long newParent = IndexTree.acquireNewInternalNode( cursor );
-            cursor.goToPage( newParent );
-            PersistedPageHeader.setKeyLength( cursor, keySize );
-            IndexTree.updateSiblingAndFollowingIdsInsertion( cursor, this.currentParent, newParent );
-            this.currentParent = newParent;
-            this.currentOffset = 0;
-            this.currentPair = 0;
-        }
-        if ( this.currentOffset == 0 )
-        {
-            parentWriter.addChild( leaf );
-        }
-        else
-        {
-            cursor.goToPage( leaf );
-            parentWriter.addChild( leaf );
-            parentWriter.addKey( IndexInsertion.getFirstKeyInNodeAsBytes( cursor ) );
-        }
-        this.currentPair++;
-        this.currentOffset += 8;
-
+        InternalLevelBuilder internalLevels = new InternalLevelBuilder( sorter.keySize );
+        internalLevels.fillFactor = internalFillFactor;
+        sorter.sort( internalLevels );
+        return internalLevels.build( sorter.getSortedDisk(), sorter.finalPageId() );
     }
 
-    private long buildUpperLeaves( PageProxyCursor cursor, long leftMostNode ) throws IOException
+    /**
+     * Adds every key of the source to the sorter, then loads the sorted keys with {@link #load(Sorter)}. The source
+     * must hand out keys of the sorter's key size.
+     *
+     * @throws IllegalArgumentException if the keys of the source are not of the sorter's key size, as far as that can
+     * be told: a {@link PathFileSource} tells its key length, for other sources every page must hold whole keys.
+     */
+    public static IndexTree load( BulkLoadDataSource source, Sorter sorter ) throws IOException
     {
-        long firstParent = IndexTree.acquireNewInternalNode( cursor );
-        cursor.goToPage( firstParent );
-        PersistedPageHeader.setKeyLength( cursor, keySize );
-        this.currentParent = firstParent;
-        this.currentOffset = 0;
-        this.currentPair = 0;
-        long currentNode = leftMostNode;
-        cursor.goToPage( leftMostNode );
-        long nextNode = PersistedPageHeader.getSiblingID( cursor );
-
-        while ( nextNode != -1l )
+        if ( source instanceof PathFileSource && ((PathFileSource) source).keyLength != sorter.keySize )
         {
-            copyUpLeafToParent( cursor, currentNode );
-            currentNode = nextNode;
-            cursor.goToPage( nextNode );
-            nextNode = PersistedPageHeader.getSiblingID( cursor );
+            throw new IllegalArgumentException( "The source holds keys of length " +
+                    ((PathFileSource) source).keyLength + ", the sorter keys of length " + sorter.keySize + "." );
         }
-        copyUpLeafToParent( cursor, currentNode );
-        cursor.goToPage( currentParent );
-        cursor.deferWriting();
-        cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-        cursor.putBytes( parentWriter.getChildren() );
-        byte[] keys = parentWriter.getKeys();
-        cursor.putBytes( keys );
-        PersistedPageHeader.setNumberOfKeys( cursor, ((keys.length / keySize) / 8) );
-        cursor.resumeWriting();
-
-        if ( firstParent != this.currentParent )
+        long[] key = new long[sorter.keySize];
+        while ( source.hasNext() )
         {
-            return buildUpperLeaves( cursor, firstParent );
-        }
-
-        else
-        {
-            return firstParent;
+            ByteBuffer page = ByteBuffer.wrap( source.nextPage() );
+            if ( page.remaining() % (key.length * Long.BYTES) != 0 )
+            {
+                throw new IllegalArgumentException( "A page of " + page.remaining() +
+                        " bytes does not hold whole keys of length " + key.length + "." );
+            }
+            while ( page.hasRemaining() )
+            {
+                for ( int i = 0; i < key.length; i++ )
+                {
+                    key[i] = page.getLong();
+                }
+                sorter.addUnsortedKey( key );
+            }
         }
+        return load( sorter );
     }
 
-    private void copyUpLeafToParent( PageProxyCursor cursor, long leaf ) throws IOException
+    /**
+     * Builds the internal levels over the leaves [0, finalLeafPage). The first keys of the leaves are read by
+     * {@link #parallelism} threads, each over a contiguous range of leaves, and every level above is built from memory.
+     */
+    public IndexTree run() throws IOException
     {
-        if ( currentPair > MAX_PAIRS )
-        {
-            cursor.goToPage( this.currentParent );
-            cursor.deferWriting();
-            cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
-            cursor.putBytes( parentWriter.getChildren() );
-            cursor.putBytes( parentWriter.getKeys() );
-            PersistedPageHeader.setNumberOfKeys( cursor, MAX_PAIRS );
-            cursor.resumeWriting();
-            long newParent = IndexTree.acquireNewInternalNode( cursor );
-            cursor.goToPage( newParent );
-            PersistedPageHeader.setKeyLength( cursor, keySize );
-            IndexTree.updateSiblingAndFollowingIdsInsertion( cursor, this.currentParent, newParent );
-            this.currentParent = newParent;
-            this.currentOffset = 0;
-            this.currentPair = 0;
-        }
-        if ( this.currentOffset == 0 )
-        {
-            parentWriter.addChild( leaf );
-        }
-        else
-        {
-            cursor.goToPage( leaf );
-            parentWriter.addChild( leaf );
-            parentWriter.addKey( traverseToFindFirstKeyInLeafAsBytes( cursor ) );
-        }
-        this.currentPair++;
-        this.currentOffset += 8;
+        InternalLevelBuilder internalLevels = new InternalLevelBuilder( keySize );
+        internalLevels.parallelism = parallelism;
+        internalLevels.fillFactor = internalFillFactor;
+        internalLevels.readLeaves( disk, 0, finalLeafPage );
+        tree = internalLevels.build( disk, finalLeafPage );
+        return tree;
     }
 
     public byte[] traverseToFindFirstKeyInLeafAsBytes( PageProxyCursor cursor ) throws IOException
@@ -192,50 +124,4 @@ public class IndexBulkLoader
             return traverseToFindFirstKeyInLeafAsBytes( cursor );
         }
     }
-
-
-    private class ParentBufferWriter
-    {
-        byte[] children = new byte[RESERVED_CHILDREN_SPACE];
-        byte[] keys = new byte[MAX_PAIRS * keySize * 8];
-        ByteBuffer cb = ByteBuffer.wrap( children );
-        LongBuffer cBuffer = cb.asLongBuffer();
-        ByteBuffer kb = ByteBuffer.wrap( keys );
-
-        void addChild( long child )
-        {
-            cBuffer.put( child );
-        }
-
-        void addKey( byte[] key )
-        {
-            kb.put( key );
-        }
-
-        byte[] getChildren()
-        {
-            int index = cBuffer.position();
-            cBuffer.position( 0 );
-            if ( index != cBuffer.limit() )
-            {
-                byte[] partialBytes = new byte[index * 8];
-                System.arraycopy( children, 0, partialBytes, 0, partialBytes.length );
-                return partialBytes;
-            }
-            return children;
-        }
-
-        byte[] getKeys()
-        {
-            int index = kb.position();
-            kb.position( 0 );
-            if ( index != kb.limit() )
-            {
-                byte[] partialBytes = new byte[index];
-                System.arraycopy( keys, 0, partialBytes, 0, partialBytes.length );
-                return partialBytes;
-            }
-            return keys;
-        }
-    }
 }
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import com.pathdb.pageCacheSort.Sorter;
+import com.pathdb.pathIndex.tree.IndexTree;
+import com.pathdb.storage.DiskCache;
+import com.pathdb.storage.PersistedPageHeader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Builds the internal levels of a tree over a level of leaves. The id and first key of every leaf are kept in memory,
+ * either collected from the last merge pass of a {@link Sorter} while it runs, or read from the leaves with
+ * {@link #readLeaves(DiskCache, long, long)}. The internal nodes are then written level by level, bottom up, after the
+ * last leaf. The separator keys of a level are passed up in memory, so no level is read back.
+ * <p>
+ * Reading the leaves and writing a level are split into contiguous ranges, handled by {@link #parallelism} threads.
+ * Every node id of a level is known before the level is written, so the ranges do not depend on each other.
+ */
+public class InternalLevelBuilder implements Sorter.LeafListener
+{
+    private static final int MIN_RANGE_SIZE = 256;
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Share of an internal node filled with children, in (0, 1]. Every node gets at least two children: nodes are
+     * filled with at least three, and the last node of a level takes one child from the node before it if it would
+     * be left with one.
+     */
+    public double fillFactor = 1.0;
+    private final int keySize;
+    private final int maxChildren;
+    private long[] leafIds = new long[1024];
+    private long[] firstKeys;
+    private int leafCount = 0;
+
+    public InternalLevelBuilder( int keySize )
+    {
+        this.keySize = keySize;
+        // The same number of children per node as IndexBulkLoader.
+        this.maxChildren = (DiskCache.PAGE_SIZE - PersistedPageHeader.NODE_HEADER_LENGTH) / ((keySize + 1) * 8);
+        this.firstKeys = new long[leafIds.length * keySize];
+    }
+
+    @Override
+    public void leafWritten( long pageId, long[] firstKey )
+    {
+        ensureCapacity( leafCount + 1 );
+        leafIds[leafCount] = pageId;
+        System.arraycopy( firstKey, 0, firstKeys, leafCount * keySize, keySize );
+        leafCount++;
+    }
+
+    /**
+     * Adds the leaves with ids [firstLeaf, endLeaf), reading their first keys from the disk.
+     */
+    public void readLeaves( DiskCache disk, long firstLeaf, long endLeaf ) throws IOException
+    {
+        int count = Math.toIntExact( endLeaf - firstLeaf );
+        ensureCapacity( leafCount + count );
+        int base = leafCount;
+        long[] ids = leafIds;
+        long[] keys = firstKeys;
+        inParallel( disk, count, ( cursor, from, to ) ->
+        {
+            for ( int i = from; i < to; i++ )
+            {
+                long leaf = firstLeaf + i;
+                cursor.goToPage( leaf );
+                cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
+                ids[base + i] = leaf;
+                for ( int k = 0; k < keySize; k++ )
+                {
+                    keys[(base + i) * keySize + k] = cursor.getLong();
+                }
+            }
+        } );
+        leafCount += count;
+    }
+
+    public int getLeafCount()
+    {
+        return leafCount;
+    }
+
+    /**
+     * Writes the internal levels over the collected leaves.
+     *
+     * @param disk the disk holding the leaves.
+     * @param finalLeafPage internal nodes are given the ids after this one.
+     * @return the tree, rooted at the single node of the top level, which is the leaf if there is only one.
+     */
+    public IndexTree build( DiskCache disk, long finalLeafPage ) throws IOException
+    {
+        if ( leafCount == 0 )
+        {
+            throw new IllegalStateException( "No leaves were added." );
+        }
+        if ( fillFactor <= 0 || fillFactor > 1 )
+        {
+            throw new IllegalArgumentException( "Fill factor must be in (0, 1], was " + fillFactor + "." );
+        }
+        int childrenPerNode = Math.min( maxChildren, Math.max( 3, (int) (maxChildren * fillFactor) ) );
+        long nextId = finalLeafPage + 1;
+        long[] children = leafIds;
+        long[] childKeys = firstKeys;
+        int childCount = leafCount;
+        while ( childCount > 1 )
+        {
+            int parentCount = (childCount + childrenPerNode - 1) / childrenPerNode;
+            long firstParent = nextId;
+            long[] levelChildren = children;
+            long[] levelKeys = childKeys;
+            int levelChildCount = childCount;
+            inParallel( disk, parentCount, ( cursor, from, to ) ->
+            {
+                for ( int i = from; i < to; i++ )
+                {
+                    int firstChild = firstChild( i, parentCount, levelChildCount, childrenPerNode );
+                    int endChild = i == parentCount - 1 ? levelChildCount :
+                                   firstChild( i + 1, parentCount, levelChildCount, childrenPerNode );
+                    writeInternalNode( cursor, firstParent + i, i == parentCount - 1, levelChildren, levelKeys,
+                            firstChild, endChild );
+                }
+            } );
+            long[] parents = new long[parentCount];
+            long[] parentKeys = new long[parentCount * keySize];
+            for ( int i = 0; i < parentCount; i++ )
+            {
+                parents[i] = firstParent + i;
+                // The first key of a node is the first key of its leftmost child, it is the separator one level up.
+                System.arraycopy( childKeys, firstChild( i, parentCount, childCount, childrenPerNode ) * keySize,
+                        parentKeys, i * keySize, keySize );
+            }
+            nextId += parentCount;
+            children = parents;
+            childKeys = parentKeys;
+            childCount = parentCount;
+        }
+        IndexTree tree = new IndexTree( keySize, children[0], disk );
+        tree.nodeIds.skipTo( nextId );
+        return tree;
+    }
+
+    /**
+     * @return the index of the first child of the given node of a level.
+     */
+    private static int firstChild( int node, int parentCount, int childCount, int childrenPerNode )
+    {
+        int first = node * childrenPerNode;
+        if ( node > 0 && node == parentCount - 1 && childCount - first == 1 )
+        {
+            // Left with one child, take one from the node before.
+            first--;
+        }
+        return first;
+    }
+
+    /**
+     * Writes one internal node holding children [from, to), separated by the first keys of all but the first of them.
+     * The nodes of a level have consecutive ids, so the siblings are the ids next to it.
+     */
+    private void writeInternalNode( PageProxyCursor cursor, long node, boolean lastOfLevel, long[] children,
+            long[] childKeys, int from, int to ) throws IOException
+    {
+        cursor.goToPage( node );
+        PersistedPageHeader.initializeInternalNode( cursor );
+        PersistedPageHeader.setKeyLength( cursor, keySize );
+        PersistedPageHeader.setNumberOfKeys( cursor, to - from - 1 );
+        PersistedPageHeader.setPrecedingId( cursor, from == 0 ? -1 : node - 1 );
+        PersistedPageHeader.setFollowingID( cursor, lastOfLevel ? -1 : node + 1 );
+        cursor.setOffset( PersistedPageHeader.NODE_HEADER_LENGTH );
+        for ( int i = from; i < to; i++ )
+        {
+            cursor.putLong( children[i] );
+        }
+        for ( int i = (from + 1) * keySize; i < to * keySize; i++ )
+        {
+            cursor.putLong( childKeys[i] );
+        }
+    }
+
+    private void ensureCapacity( int leaves )
+    {
+        if ( leaves > leafIds.length )
+        {
+            int capacity = Math.max( leaves, leafIds.length * 2 );
+            leafIds = Arrays.copyOf( leafIds, capacity );
+            firstKeys = Arrays.copyOf( firstKeys, capacity * keySize );
+        }
+    }
+
+    /**
+     * Splits [0, count) into contiguous ranges and runs the task on each of them, every range with a cursor of its own.
+     */
+    private void inParallel( DiskCache disk, int count, RangeTask task ) throws IOException
+    {
+        int ranges = Math.max( 1, Math.min( parallelism, count / MIN_RANGE_SIZE ) );
+        if ( ranges == 1 )
+        {
+            runRange( disk, task, 0, count );
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool( ranges );
+        try
+        {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>( ranges );
+            for ( int r = 0; r < ranges; r++ )
+            {
+                int from = (int) ((long) count * r / ranges);
+                int to = (int) ((long) count * (r + 1) / ranges);
+                tasks.add( pool.submit( () ->
+                {
+                    runRange( disk, task, from, to );
+                    return null;
+                } ) );
+            }
+            for ( ForkJoinTask<Void> rangeTask : tasks )
+            {
+                join( rangeTask );
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static void runRange( DiskCache disk, RangeTask task, int from, int to ) throws IOException
+    {
+        PageProxyCursor cursor = disk.getCursor( 0 );
+        task.run( cursor, from, to );
+        cursor.flush();
+    }
+
+    private static void join( ForkJoinTask<Void> task ) throws IOException
+    {
+        try
+        {
+            task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while bulk loading.", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Bulk loading failed.", e.getCause() );
+        }
+    }
+
+    private interface RangeTask
+    {
+        void run( PageProxyCursor cursor, int from, int to ) throws IOException;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import com.pathdb.storage.DiskCache;
+import com.pathdb.storage.PersistedPageHeader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams a file of paths with the same number of nodes as pages of keys. Every path becomes the key
+ * {@code [nodes, id1, ..., idn]}, the form in which paths are stored in the index. The file is read sequentially in
+ * large blocks through an off-heap buffer, so only one block and one page are ever held in memory.
+ */
+public abstract class PathFileSource implements BulkLoadDataSource, Closeable
+{
+    public static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    public final int nodesPerPath;
+    public final int keyLength;
+    private final int keysPerPage;
+    private final FileChannel channel;
+    protected final ByteBuffer readBuffer;
+    private final ByteBuffer page;
+    private final long[] key;
+    private boolean keyPending;
+    private boolean endOfFile = false;
+
+    protected PathFileSource( Path file, int nodesPerPath ) throws IOException
+    {
+        this.nodesPerPath = nodesPerPath;
+        this.keyLength = nodesPerPath + 1;
+        this.keysPerPage = (DiskCache.PAGE_SIZE - PersistedPageHeader.NODE_HEADER_LENGTH) / (keyLength * 8);
+        this.channel = FileChannel.open( file, StandardOpenOption.READ );
+        this.readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+        this.readBuffer.flip();
+        this.page = ByteBuffer.allocate( keysPerPage * keyLength * 8 );
+        this.key = new long[keyLength];
+        this.key[0] = nodesPerPath;
+    }
+
+    /**
+     * Reads the node ids of the next path into ids[1..nodesPerPath].
+     *
+     * @return false if there are no more paths.
+     */
+    protected abstract boolean readPath( long[] ids ) throws IOException;
+
+    @Override
+    public boolean hasNext() throws IOException
+    {
+        if ( !keyPending )
+        {
+            keyPending = readPath( key );
+        }
+        return keyPending;
+    }
+
+    @Override
+    public byte[] nextPage() throws IOException
+    {
+        page.clear();
+        while ( page.hasRemaining() && hasNext() )
+        {
+            for ( long id : key )
+            {
+                page.putLong( id );
+            }
+            keyPending = false;
+        }
+        return Arrays.copyOf( page.array(), page.position() );
+    }
+
+    /**
+     * Makes sure the read buffer holds at least the given number of bytes, unless the file ends first.
+     *
+     * @return false if the file ended before that many bytes were buffered.
+     */
+    protected boolean fill( int bytes ) throws IOException
+    {
+        if ( readBuffer.remaining() >= bytes )
+        {
+            return true;
+        }
+        readBuffer.compact();
+        while ( readBuffer.position() < bytes && !endOfFile )
+        {
+            endOfFile = channel.read( readBuffer ) == -1;
+        }
+        readBuffer.flip();
+        return readBuffer.remaining() >= bytes;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
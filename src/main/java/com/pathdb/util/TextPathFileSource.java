@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Reads paths written as text, one path per line, the node ids separated by spaces, tabs or commas. Anything after the
+ * node ids of a line, like an edge weight, is skipped, and so are empty lines and lines starting with '#' or '%'. A
+ * text edge list is a file of paths with two nodes.
+ * <p>
+ * The ids are parsed straight from the read buffer, no string is created for a line.
+ */
+public class TextPathFileSource extends PathFileSource
+{
+    private static final int END = -1;
+
+    public TextPathFileSource( Path file, int nodesPerPath ) throws IOException
+    {
+        super( file, nodesPerPath );
+    }
+
+    public static TextPathFileSource edgeList( Path file ) throws IOException
+    {
+        return new TextPathFileSource( file, 2 );
+    }
+
+    @Override
+    protected boolean readPath( long[] ids ) throws IOException
+    {
+        int b = skipToPath();
+        if ( b == END )
+        {
+            return false;
+        }
+        for ( int i = 1; i <= nodesPerPath; i++ )
+        {
+            if ( i > 1 )
+            {
+                b = nextByte();
+                while ( isSeparator( b ) )
+                {
+                    b = nextByte();
+                }
+            }
+            if ( b != '-' && !isDigit( b ) )
+            {
+                throw new IOException( "Expected " + nodesPerPath + " node ids on a line, found " + (i - 1) + "." );
+            }
+            ids[i] = parseId( b );
+        }
+        skipLine();
+        return true;
+    }
+
+    /**
+     * @return the first byte of the next path, or END if there is none.
+     */
+    private int skipToPath() throws IOException
+    {
+        while ( true )
+        {
+            int b = nextByte();
+            if ( b == END )
+            {
+                return END;
+            }
+            if ( b == '#' || b == '%' )
+            {
+                skipLine();
+            }
+            else if ( !isSeparator( b ) && b != '\n' && b != '\r' )
+            {
+                return b;
+            }
+        }
+    }
+
+    /**
+     * Parses the id starting with the given byte. The byte following the id is left in the buffer.
+     *
+     * @throws IOException if there is no digit after a '-', or the id does not fit in a long.
+     */
+    private long parseId( int first ) throws IOException
+    {
+        boolean negative = first == '-';
+        int b = negative ? nextByte() : first;
+        if ( !isDigit( b ) )
+        {
+            throw new IOException( "Expected a node id after '-'." );
+        }
+        // Summed up negative, as that also holds the smallest long.
+        long value = -(b - '0');
+        b = peekByte();
+        try
+        {
+            while ( isDigit( b ) )
+            {
+                value = Math.subtractExact( Math.multiplyExact( value, 10 ), b - '0' );
+                readBuffer.get();
+                b = peekByte();
+            }
+            return negative ? value : Math.negateExact( value );
+        }
+        catch ( ArithmeticException e )
+        {
+            throw new IOException( "A node id does not fit in a long.", e );
+        }
+    }
+
+    private void skipLine() throws IOException
+    {
+        int b = nextByte();
+        while ( b != '\n' && b != END )
+        {
+            b = nextByte();
+        }
+    }
+
+    private int nextByte() throws IOException
+    {
+        return fill( 1 ) ? readBuffer.get() & 0xFF : END;
+    }
+
+    private int peekByte() throws IOException
+    {
+        return fill( 1 ) ? readBuffer.get( readBuffer.position() ) & 0xFF : END;
+    }
+
+    private static boolean isSeparator( int b )
+    {
+        return b == ' ' || b == '\t' || b == ',';
+    }
+
+    private static boolean isDigit( int b )
+    {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -24,6 +24,10 @@ public class SortBenchmark {
         sortBenchmark.smallestExample();
 
         //sortBenchmark.randomSorting();
+
+        //sortBenchmark.mergeComparison();
+
+        //sortBenchmark.runGenerationComparison();
     }
 
     public SortBenchmark() throws IOException {
@@ -58,6 +62,83 @@ public class SortBenchmark {
         }
     }
 
+    public void mergeComparison() throws IOException {
+        for(boolean loserTree : new boolean[]{false, true}){
+            sorter = new Sorter(4);
+            sorter.loserTreeMerge = loserTree;
+            writeRandomKeysToSorter(sorter, 10000000);
+            long startTime = System.nanoTime();
+
+            SetIterator itr = sorter.sort();
+
+            String text = "MergeComparison - " + (loserTree ? "LoserTree" : "PriorityQueue") + " Merge Set Size:" + sorter.FAN_IN + " Duration: " + ((System.nanoTime() - startTime) / 1000000);
+            try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("sorting_benchmarking.txt", true)))) {
+                out.println(text);
+                System.out.println(text);
+            }
+        }
+    }
+
+    public void readAheadComparison() throws IOException {
+        for(boolean readAhead : new boolean[]{false, true}){
+            // Small runs, so most of the time goes into merging.
+            sorter = new Sorter(4, 1024 * 1024);
+            sorter.readAhead = readAhead;
+            writeRandomKeysToSorter(sorter, 10000000);
+            long startTime = System.nanoTime();
+
+            SetIterator itr = sorter.sort();
+
+            String text = "ReadAheadComparison - " + (readAhead ? "ReadAhead" : "Synchronous") + " Runs:" + sorter.getRunCount() + " Duration: " + ((System.nanoTime() - startTime) / 1000000);
+            try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("sorting_benchmarking.txt", true)))) {
+                out.println(text);
+                System.out.println(text);
+            }
+        }
+    }
+
+    public void runGenerationComparison() throws IOException {
+        long runMemory = 8 * 1024 * 1024;
+        for(boolean nearlySorted : new boolean[]{false, true}){
+            // One page of run memory behaves like flushing every page on its own.
+            runGeneration("PagePerRun", new Sorter(4, Sorter.ALT_MAX_PAGE_SIZE), nearlySorted);
+            runGeneration("SortedArena", new Sorter(4, runMemory), nearlySorted);
+            Sorter replacementSelection = new Sorter(4, runMemory);
+            replacementSelection.runGeneration = Sorter.RunGeneration.REPLACEMENT_SELECTION;
+            runGeneration("ReplacementSelection", replacementSelection, nearlySorted);
+        }
+    }
+
+    private void runGeneration(String name, Sorter sorter, boolean nearlySorted) throws IOException {
+        long startTime = System.nanoTime();
+        if(nearlySorted){
+            writeNearlySortedKeysToSorter(sorter, 10000000);
+        }
+        else{
+            writeRandomKeysToSorter(sorter, 10000000);
+        }
+        SetIterator itr = sorter.sort();
+
+        String text = "RunGeneration - " + name + (nearlySorted ? " NearlySorted" : " Random") + " Runs:" + sorter.getRunCount() + " Duration: " + ((System.nanoTime() - startTime) / 1000000);
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter("sorting_benchmarking.txt", true)))) {
+            out.println(text);
+            System.out.println(text);
+        }
+    }
+
+    public void writeNearlySortedKeysToSorter(Sorter sorter, int count) throws IOException {
+        long[] key = new long[4];
+        Random random = new Random();
+        for(int i = 2; i < count; i++){
+            // Ordered by source node, with the rest of the key out of order within a small window.
+            key[0] = i / 16;
+            for(int j = 1; j < key.length; j++){
+                key[j] = random.nextInt(1000);
+            }
+            sorter.addUnsortedKey(key);
+        }
+    }
+
     public void writeUnsortedKeysToSorter(Sorter sorter, int count) throws IOException {
         long[] key = new long[4];
         for(int i = 2; i < count; i++){
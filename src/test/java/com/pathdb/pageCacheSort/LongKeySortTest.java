@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pageCacheSort;
+
+import com.pathdb.pathIndex.tree.KeyImpl;
+import org.junit.Test;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class LongKeySortTest
+{
+    @Test
+    public void sortsKeysLikeKeyImplTest() throws Exception
+    {
+        // given
+        int keySize = 4;
+        int count = 10000;
+        Random random = new Random( 42 );
+        long[][] expected = new long[count][keySize];
+        LongBuffer keys = LongBuffer.allocate( count * keySize );
+        for ( int i = 0; i < count; i++ )
+        {
+            for ( int j = 0; j < keySize; j++ )
+            {
+                // Few distinct values, so there are many duplicates and shared prefixes.
+                expected[i][j] = random.nextInt( 5 ) - 2;
+                keys.put( i * keySize + j, expected[i][j] );
+            }
+        }
+
+        // when
+        new LongKeySort( keys, keySize ).sort( 0, count );
+        Arrays.sort( expected, KeyImpl.getComparator() );
+
+        // then
+        for ( int i = 0; i < count; i++ )
+        {
+            long[] key = new long[keySize];
+            keys.position( i * keySize );
+            keys.get( key );
+            assertArrayEquals( expected[i], key );
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pageCacheSort;
+
+import com.pathdb.pathIndex.tree.KeyImpl;
+import org.junit.Test;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplacementSelectionTest
+{
+    private static final int KEY_SIZE = 2;
+    private static final int CAPACITY = 1000;
+
+    @Test
+    public void randomInputFormsSortedRunsOfAboutTwiceTheMemoryTest() throws Exception
+    {
+        // given
+        Random random = new Random( 42 );
+        List<List<long[]>> runs = new ArrayList<>();
+        ReplacementSelection selection = newSelection( runs );
+
+        // when
+        for ( int i = 0; i < 100000; i++ )
+        {
+            selection.add( new long[]{random.nextInt( 1000000 ), random.nextInt( 3 )} );
+        }
+        selection.finish();
+
+        // then
+        assertEquals( 100000, keysIn( runs ) );
+        assertRunsAreSorted( runs );
+        assertTrue( 100000 / runs.size() > CAPACITY * 3 / 2 );
+    }
+
+    @Test
+    public void nearlySortedInputFormsOneRunTest() throws Exception
+    {
+        // given
+        Random random = new Random( 42 );
+        List<List<long[]>> runs = new ArrayList<>();
+        ReplacementSelection selection = newSelection( runs );
+
+        // when
+        for ( int i = 0; i < 100000; i++ )
+        {
+            selection.add( new long[]{i + random.nextInt( CAPACITY / 2 ), 0} );
+        }
+        selection.finish();
+
+        // then
+        assertEquals( 1, runs.size() );
+        assertEquals( 100000, keysIn( runs ) );
+        assertRunsAreSorted( runs );
+    }
+
+    private static ReplacementSelection newSelection( List<List<long[]>> runs )
+    {
+        List<long[]>[] current = new List[]{new ArrayList<long[]>()};
+        ReplacementSelection.Output output = new ReplacementSelection.Output()
+        {
+            @Override
+            public void add( LongBuffer keys, int keyIndex )
+            {
+                current[0].add( new long[]{keys.get( keyIndex * KEY_SIZE ), keys.get( keyIndex * KEY_SIZE + 1 )} );
+            }
+
+            @Override
+            public void endRun()
+            {
+                if ( !current[0].isEmpty() )
+                {
+                    runs.add( current[0] );
+                    current[0] = new ArrayList<>();
+                }
+            }
+        };
+        return new ReplacementSelection( LongBuffer.allocate( CAPACITY * KEY_SIZE ), CAPACITY, KEY_SIZE, output );
+    }
+
+    private static int keysIn( List<List<long[]>> runs )
+    {
+        int keys = 0;
+        for ( List<long[]> run : runs )
+        {
+            keys += run.size();
+        }
+        return keys;
+    }
+
+    private static void assertRunsAreSorted( List<List<long[]>> runs )
+    {
+        for ( List<long[]> run : runs )
+        {
+            for ( int i = 1; i < run.size(); i++ )
+            {
+                assertTrue( KeyImpl.getComparator().compare( run.get( i - 1 ), run.get( i ) ) <= 0 );
+            }
+        }
+    }
+}
@@ -11,8 +11,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 public class SorterTest
 {
 
@@ -83,6 +88,40 @@ public class SorterTest
         assert (readBackCount == count - 2);
     }
 
+    @Test
+    public void leafListenerSeesEveryLeafInOrderTest() throws IOException
+    {
+        // given
+        writeRandomKeysToSorter( sorter, 100000 );
+        List<Long> leafIds = new ArrayList<>();
+        List<long[]> firstKeys = new ArrayList<>();
+
+        // when
+        SetIterator itr = sorter.sort( ( pageId, firstKey ) ->
+        {
+            leafIds.add( pageId );
+            firstKeys.add( firstKey );
+        } );
+
+        // then
+        int readBackCount = 0;
+        while ( itr.hasNext() )
+        {
+            long[] next = itr.getNext();
+            if ( readBackCount % sorter.keysPerPage == 0 )
+            {
+                assertArrayEquals( firstKeys.get( readBackCount / sorter.keysPerPage ), next );
+            }
+            readBackCount++;
+        }
+        assertEquals( (readBackCount + sorter.keysPerPage - 1) / sorter.keysPerPage, leafIds.size() );
+        for ( int i = 1; i < leafIds.size(); i++ )
+        {
+            assertEquals( leafIds.get( i - 1 ) + 1, (long) leafIds.get( i ) );
+        }
+        assertEquals( sorter.finalPageId(), (long) leafIds.get( leafIds.size() - 1 ) );
+    }
+
     public void writeUnsortedKeysToSorter( Sorter sorter, int count ) throws IOException
     {
         int ijk = 0;
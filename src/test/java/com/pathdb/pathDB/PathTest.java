@@ -131,6 +131,21 @@ public class PathTest
 
     }
 
+    @Test
+    public void pathSurvivesConversionToKeyTest() throws Exception
+    {
+        // given
+        Path path = new Path( incrementingNodes( 4, 42 ) );
+
+        // when
+        long[] key = path.toKey();
+
+        // then
+        assertEquals( 5, key.length );
+        assertEquals( 4, key[0] );
+        assertEquals( path, Path.fromKey( key ) );
+    }
+
     private boolean pathsAreSorted( List<Path> paths )
     {
         for ( int i = 0; i < paths.size(); i++ )
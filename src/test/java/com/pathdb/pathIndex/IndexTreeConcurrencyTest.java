@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pathIndex;
+
+import com.pathdb.pathIndex.tree.IndexTree;
+import com.pathdb.pathIndex.tree.PageProxyCursor;
+import com.pathdb.pathIndex.tree.SearchCursor;
+import com.pathdb.storage.DiskCache;
+import com.pathdb.storage.PersistedPageHeader;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexTreeConcurrencyTest
+{
+    private static final int STABLE_KEYS = 2000;
+    private static final int KEYS_PER_WRITER = 1000;
+    private static final int WRITERS = 4;
+    private static final int SCANNERS = 4;
+
+    @Test
+    public void scansSeeEveryKeyOnceWhileLeavesSplitAndShiftTest() throws Exception
+    {
+        // given
+        DiskCache disk = DiskCache.temporaryDiskCache( false );
+        IndexTree tree = new IndexTree( 4, disk );
+        PageProxyCursor root = disk.getCursor( tree.rootNodeId );
+        PersistedPageHeader.setKeyLength( root, 4 );
+        root.flush();
+        for ( int i = 0; i < STABLE_KEYS; i++ )
+        {
+            tree.insert( new long[]{1, i, 0, 0} );
+        }
+
+        // when
+        ExecutorService executor = Executors.newFixedThreadPool( WRITERS + SCANNERS );
+        AtomicBoolean writing = new AtomicBoolean( true );
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<Integer>> scanners = new ArrayList<>();
+        try
+        {
+            for ( int w = 0; w < WRITERS; w++ )
+            {
+                final long writer = w + 1;
+                writers.add( executor.submit( () ->
+                {
+                    // Lands between the stable keys, so the keys of a leaf move while it is scanned.
+                    for ( int i = 0; i < KEYS_PER_WRITER; i++ )
+                    {
+                        tree.insert( new long[]{1, (i * 7) % STABLE_KEYS, 1, writer * KEYS_PER_WRITER + i} );
+                    }
+                    return null;
+                } ) );
+            }
+            for ( int s = 0; s < SCANNERS; s++ )
+            {
+                scanners.add( executor.submit( () ->
+                {
+                    int scans = 0;
+                    do
+                    {
+                        scanAndCheck( tree, disk );
+                        scans++;
+                    }
+                    while ( writing.get() );
+                    return scans;
+                } ) );
+            }
+            for ( Future<?> writer : writers )
+            {
+                writer.get();
+            }
+            writing.set( false );
+            for ( Future<Integer> scanner : scanners )
+            {
+                assertTrue( scanner.get() > 0 );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertEquals( STABLE_KEYS + WRITERS * KEYS_PER_WRITER, scanAndCheck( tree, disk ) );
+    }
+
+    /**
+     * Scans every key with the prefix 1, checks that they come in order and that each of the stable keys is seen
+     * exactly once.
+     *
+     * @return the number of keys scanned.
+     */
+    private static int scanAndCheck( IndexTree tree, DiskCache disk ) throws Exception
+    {
+        PageProxyCursor cursor = disk.getCursor( tree.rootNodeId );
+        SearchCursor results = tree.find( cursor, new long[]{1} );
+        long[] key = new long[4];
+        long[] previous = null;
+        int stableKeys = 0;
+        int keys = 0;
+        while ( results.next( cursor, key ) )
+        {
+            if ( previous != null )
+            {
+                assertTrue( IndexTree.comparator.compare( previous, key ) < 0 );
+            }
+            else
+            {
+                previous = new long[4];
+            }
+            System.arraycopy( key, 0, previous, 0, key.length );
+            if ( key[2] == 0 )
+            {
+                assertEquals( stableKeys, key[1] );
+                stableKeys++;
+            }
+            keys++;
+        }
+        assertEquals( STABLE_KEYS, stableKeys );
+        return keys;
+    }
+}
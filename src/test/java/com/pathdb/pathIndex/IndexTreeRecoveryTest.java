@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.pathIndex;
+
+import com.pathdb.pathIndex.tree.IndexTree;
+import com.pathdb.pathIndex.tree.PageProxyCursor;
+import com.pathdb.pathIndex.tree.SearchCursor;
+import com.pathdb.storage.DiskCache;
+import com.pathdb.storage.LoggedPageFile;
+import com.pathdb.storage.PersistedPageHeader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexTreeRecoveryTest
+{
+    private static final int KEYS = 20000;
+
+    @Test
+    public void committedSplitsAreRecoveredFromTheLogTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        IndexTree tree = newTree( DiskCache.loggedDiskCache( file ) );
+        List<long[]> keys = new ArrayList<>();
+        for ( int i = 0; i < KEYS; i++ )
+        {
+            keys.add( new long[]{1, i, 2, 3} );
+        }
+
+        // when
+        tree.insertSorted( keys );
+        long logAfterInsert = new File( file.getPath() + LoggedPageFile.LOG_SUFFIX ).length();
+        IndexTree recovered = new IndexTree( 4, tree.rootNodeId, DiskCache.loggedDiskCache( copyOnDisk( file ) ) );
+
+        // then
+        assertTrue( logAfterInsert > 0 );
+        assertFalse( PersistedPageHeader.isLeafNode( recovered.disk.getCursor( recovered.rootNodeId ) ) );
+        assertEveryKeyFound( recovered, keys );
+    }
+
+    @Test
+    public void checkpointWritesEveryChangeIntoTheFileTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        IndexTree tree = newTree( DiskCache.loggedDiskCache( file ) );
+        List<long[]> keys = new ArrayList<>();
+        for ( int i = 0; i < KEYS; i++ )
+        {
+            long[] key = new long[]{1, (i * 7) % KEYS, 2, 3};
+            tree.insert( key );
+            if ( i % 3 == 1 )
+            {
+                tree.remove( key );
+            }
+            else
+            {
+                keys.add( key );
+            }
+        }
+
+        // when
+        tree.checkpoint();
+        long logAfterCheckpoint = new File( file.getPath() + LoggedPageFile.LOG_SUFFIX ).length();
+        IndexTree recovered = new IndexTree( 4, tree.rootNodeId, DiskCache.loggedDiskCache( copyOnDisk( file ) ) );
+
+        // then
+        assertEquals( 0, logAfterCheckpoint );
+        assertEveryKeyFound( recovered, keys );
+        PageProxyCursor cursor = recovered.disk.getCursor( recovered.rootNodeId );
+        SearchCursor results = recovered.find( cursor, new long[]{1} );
+        int found = 0;
+        while ( results.next( cursor, new long[4] ) )
+        {
+            found++;
+        }
+        assertEquals( keys.size(), found );
+    }
+
+    private static IndexTree newTree( DiskCache disk ) throws IOException
+    {
+        IndexTree tree = new IndexTree( 4, disk );
+        PageProxyCursor root = disk.getCursor( tree.rootNodeId );
+        PersistedPageHeader.setKeyLength( root, 4 );
+        root.flush();
+        return tree;
+    }
+
+    private static void assertEveryKeyFound( IndexTree tree, List<long[]> keys ) throws IOException
+    {
+        PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+        long[] found = new long[4];
+        for ( long[] key : keys )
+        {
+            SearchCursor results = tree.find( cursor, key );
+            assertTrue( results.next( cursor, found ) );
+            assertArrayEquals( key, found );
+        }
+    }
+
+    private static File tempFile() throws IOException
+    {
+        File file = File.createTempFile( "pathdb_recovery", ".db" );
+        file.deleteOnExit();
+        new File( file.getPath() + LoggedPageFile.LOG_SUFFIX ).deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Copies the page file and its log as they are on disk, which is what is left of them after a crash.
+     */
+    private static File copyOnDisk( File file ) throws IOException
+    {
+        File copy = tempFile();
+        Files.copy( file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        Files.copy( Paths.get( file.getPath() + LoggedPageFile.LOG_SUFFIX ),
+                Paths.get( copy.getPath() + LoggedPageFile.LOG_SUFFIX ), StandardCopyOption.REPLACE_EXISTING );
+        return copy;
+    }
+}
@@ -28,7 +28,7 @@ public class SimpleDataGenerator
         {
             PageProxyCursor cursor = disk.getCursor( i );
             PersistedPageHeader.setNodeTypeLeaf( cursor );
-            PersistedPageHeader.setFollowingID( cursor, cursor.getCurrentPageId() + 1 );
+            PersistedPageHeader.setFollowingID( cursor, i == numberOfPages - 1 ? -1 : cursor.getCurrentPageId() + 1 );
             PersistedPageHeader.setPrecedingId( cursor, cursor.getCurrentPageId() - 1 );
             PersistedPageHeader.setKeyLength( cursor, keyLength );
             PersistedPageHeader.setNumberOfKeys( cursor, keysPerPage );
@@ -10,6 +10,13 @@ package com.pathdb.pathIndex;
 import org.junit.Test;
 import com.pathdb.pathIndex.tree.TreeNodeIDManager;
 
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class TreeNodeIDManagerTest
 {
 
@@ -28,4 +35,125 @@ public class TreeNodeIDManagerTest
         assert(pool.acquire() == 0l);
     }
 
+    @Test
+    public void releasingTwiceHandsOutOnceTest()
+    {
+        // given
+        TreeNodeIDManager ids = new TreeNodeIDManager();
+        ids.acquire();
+        ids.acquire();
+
+        // when
+        ids.release( 1 );
+        ids.release( 1 );
+
+        // then
+        assertTrue( ids.isNodeIdInFreePool( 1 ) );
+        assertEquals( 1, ids.acquire() );
+        assertFalse( ids.isNodeIdInFreePool( 1 ) );
+        assertEquals( 2, ids.acquire() );
+    }
+
+    @Test
+    public void checkpointSurvivesReopenTest() throws Exception
+    {
+        // given
+        File pageFile = Files.createTempFile( "pages", ".db" ).toFile();
+        File idFile = new File( pageFile.getPath() + TreeNodeIDManager.ID_FILE_SUFFIX );
+        TreeNodeIDManager ids = TreeNodeIDManager.open( pageFile, 0 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            ids.acquire();
+        }
+        ids.release( 3 );
+        ids.release( 7 );
+
+        // when
+        ids.checkpoint();
+        TreeNodeIDManager reopened = TreeNodeIDManager.open( pageFile, 12 );
+
+        // then
+        assertEquals( 7, reopened.acquire() );
+        assertEquals( 3, reopened.acquire() );
+        assertEquals( 12, reopened.acquire() );
+        assertFalse( idFile.exists() );
+        assertTrue( pageFile.delete() );
+    }
+
+    @Test
+    public void changeAfterCheckpointDeletesTheIdsFileTest() throws Exception
+    {
+        // given
+        File pageFile = Files.createTempFile( "pages", ".db" ).toFile();
+        File idFile = new File( pageFile.getPath() + TreeNodeIDManager.ID_FILE_SUFFIX );
+        TreeNodeIDManager ids = TreeNodeIDManager.open( pageFile, 0 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            ids.acquire();
+        }
+        ids.release( 3 );
+        ids.checkpoint();
+        assertTrue( idFile.exists() );
+
+        // when
+        assertEquals( 3, ids.acquire() );
+        TreeNodeIDManager reopened = TreeNodeIDManager.open( pageFile, 10 );
+
+        // then
+        assertFalse( idFile.exists() );
+        assertFalse( reopened.isNodeIdInFreePool( 3 ) );
+        assertEquals( 10, reopened.acquire() );
+        assertTrue( pageFile.delete() );
+    }
+
+    @Test
+    public void idsFileOlderThanThePageFileIsIgnoredTest() throws Exception
+    {
+        // given
+        File pageFile = Files.createTempFile( "pages", ".db" ).toFile();
+        File idFile = new File( pageFile.getPath() + TreeNodeIDManager.ID_FILE_SUFFIX );
+        TreeNodeIDManager ids = TreeNodeIDManager.open( pageFile, 0 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            ids.acquire();
+        }
+        ids.release( 3 );
+        ids.checkpoint();
+
+        // when
+        assertTrue( pageFile.setLastModified( idFile.lastModified() + 60000 ) );
+        TreeNodeIDManager reopened = TreeNodeIDManager.open( pageFile, 10 );
+
+        // then
+        assertFalse( idFile.exists() );
+        assertFalse( reopened.isNodeIdInFreePool( 3 ) );
+        assertEquals( 10, reopened.acquire() );
+        assertTrue( pageFile.delete() );
+    }
+
+    @Test
+    public void idsFileOfAPageFileOfAnotherLengthIsIgnoredTest() throws Exception
+    {
+        // given
+        File pageFile = Files.createTempFile( "pages", ".db" ).toFile();
+        File idFile = new File( pageFile.getPath() + TreeNodeIDManager.ID_FILE_SUFFIX );
+        TreeNodeIDManager ids = TreeNodeIDManager.open( pageFile, 0 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            ids.acquire();
+        }
+        ids.release( 3 );
+        ids.checkpoint();
+
+        // when
+        long idFileWritten = idFile.lastModified();
+        Files.write( pageFile.toPath(), new byte[100] );
+        assertTrue( pageFile.setLastModified( idFileWritten ) );
+        TreeNodeIDManager reopened = TreeNodeIDManager.open( pageFile, 10 );
+
+        // then
+        assertFalse( idFile.exists() );
+        assertFalse( reopened.isNodeIdInFreePool( 3 ) );
+        assertTrue( pageFile.delete() );
+    }
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DecompressedLeafCacheTest
+{
+    @Test
+    public void leastRecentlyUsedLeavesAreEvictedTest() throws Exception
+    {
+        // given
+        DecompressedLeafCache cache = new DecompressedLeafCache( 300 );
+        cache.put( 1, new byte[100], 10 );
+        cache.put( 2, new byte[100], 10 );
+        cache.put( 3, new byte[100], 10 );
+
+        // when
+        cache.get( 1 );
+        cache.put( 4, new byte[100], 10 );
+
+        // then
+        assertNotNull( cache.get( 1 ) );
+        assertNull( cache.get( 2 ) );
+        assertNotNull( cache.get( 3 ) );
+        assertNotNull( cache.get( 4 ) );
+        assertEquals( 300, cache.usedBytes() );
+    }
+
+    @Test
+    public void invalidatedLeavesAreRemovedTest() throws Exception
+    {
+        // given
+        DecompressedLeafCache cache = new DecompressedLeafCache( 300 );
+        cache.put( 1, new byte[100], 10 );
+        cache.put( 1, new byte[50], 5 );
+
+        // when
+        cache.invalidate( 1 );
+
+        // then
+        assertNull( cache.get( 1 ) );
+        assertEquals( 0, cache.usedBytes() );
+    }
+
+    @Test
+    public void imagesReadBeforeAnInvalidationAreNotCachedTest() throws Exception
+    {
+        // given
+        DecompressedLeafCache cache = new DecompressedLeafCache( 300 );
+        long stamp = cache.stamp();
+
+        // when
+        cache.invalidate( 1 );
+        cache.put( 1, new byte[100], 10, stamp );
+        cache.put( 2, new byte[100], 10, cache.stamp() );
+
+        // then
+        assertNull( cache.get( 1 ) );
+        assertNotNull( cache.get( 2 ) );
+        assertEquals( 100, cache.usedBytes() );
+    }
+
+    @Test
+    public void segmentedCacheStaysWithinItsBytesTest() throws Exception
+    {
+        // given
+        long maxBytes = 64L << 20;
+        DecompressedLeafCache cache = new DecompressedLeafCache( maxBytes );
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        List<Future<?>> writers = new ArrayList<>();
+
+        // when
+        try
+        {
+            for ( int t = 0; t < 4; t++ )
+            {
+                final long firstPage = t * 10000;
+                writers.add( executor.submit( () ->
+                {
+                    for ( long page = firstPage; page < firstPage + 10000; page++ )
+                    {
+                        byte[] image = new byte[8192];
+                        cache.put( page, image, 100 );
+                        DecompressedLeafCache.Leaf leaf = cache.get( page );
+                        assertNotNull( leaf );
+                        assertSame( image, leaf.image );
+                    }
+                    return null;
+                } ) );
+            }
+            for ( Future<?> writer : writers )
+            {
+                writer.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertTrue( cache.usedBytes() <= maxBytes );
+        assertTrue( cache.usedBytes() > maxBytes / 2 );
+        cache.clear();
+        assertEquals( 0, cache.usedBytes() );
+    }
+}
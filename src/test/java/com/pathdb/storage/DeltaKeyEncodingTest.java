@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeltaKeyEncodingTest
+{
+    @Test
+    public void sortedKeysRoundTripTest() throws Exception
+    {
+        // given
+        Random random = new Random( 42 );
+        long[][] keys = new long[1000][];
+        long[] key = {3, 0, 0, 0};
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            key = key.clone();
+            key[1] += random.nextInt( 3 );
+            key[2] += random.nextInt( 1 << 20 );
+            key[3] = random.nextLong();
+            keys[i] = key;
+        }
+        byte[] encoded = new byte[keys.length * DeltaKeyEncoding.maxEncodedLength( 4 )];
+
+        // when
+        int length = 0;
+        long[] prev = new long[4];
+        for ( long[] next : keys )
+        {
+            length += DeltaKeyEncoding.encode( next, prev, encoded, length );
+            prev = next;
+        }
+
+        // then
+        long[] decoded = new long[4];
+        int offset = 0;
+        for ( long[] expected : keys )
+        {
+            offset = DeltaKeyEncoding.decode( encoded, offset, decoded, decoded );
+            assertArrayEquals( expected, decoded );
+        }
+        assertEquals( length, offset );
+    }
+
+    @Test
+    public void numberOfBytesCoversSignedRangeTest() throws Exception
+    {
+        assertEquals( 1, DeltaKeyEncoding.numberOfBytes( 0 ) );
+        assertEquals( 1, DeltaKeyEncoding.numberOfBytes( 127 ) );
+        assertEquals( 2, DeltaKeyEncoding.numberOfBytes( 128 ) );
+        assertEquals( 1, DeltaKeyEncoding.numberOfBytes( -128 ) );
+        assertEquals( 2, DeltaKeyEncoding.numberOfBytes( -129 ) );
+        assertEquals( 8, DeltaKeyEncoding.numberOfBytes( Long.MAX_VALUE ) );
+        assertEquals( 8, DeltaKeyEncoding.numberOfBytes( Long.MIN_VALUE ) );
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.io.pagecache.PagedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoggedPageFileTest
+{
+    private final List<LoggedPageFile> pageFiles = new ArrayList<>();
+
+    @After
+    public void closePageFiles() throws Exception
+    {
+        for ( LoggedPageFile pageFile : pageFiles )
+        {
+            pageFile.close();
+        }
+    }
+
+    @Test
+    public void onlyCommittedPagesAreRecoveredTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        LoggedPageFile crashed = open( file );
+        crashed.writeBytes( 1, page( 7 ) );
+        crashed.commit();
+        crashed.writeBytes( 2, page( 9 ) );
+
+        // when
+        LoggedPageFile recovered = open( copyOnDisk( file ) );
+
+        // then
+        assertEquals( 7, valueOf( recovered, 1 ) );
+        assertEquals( 0, valueOf( recovered, 2 ) );
+    }
+
+    @Test
+    public void groupCutOffByTheEndOfTheLogIsDroppedTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        LoggedPageFile crashed = open( file );
+        crashed.writeBytes( 1, page( 7 ) );
+        crashed.commit();
+        crashed.writeBytes( 1, page( 8 ) );
+        crashed.writeBytes( 2, page( 9 ) );
+        crashed.commit();
+
+        // when
+        File copy = copyOnDisk( file );
+        try ( RandomAccessFile log = new RandomAccessFile( copy.getPath() + LoggedPageFile.LOG_SUFFIX, "rw" ) )
+        {
+            log.setLength( log.length() - 5 );
+        }
+        LoggedPageFile recovered = open( copy );
+
+        // then
+        assertEquals( 7, valueOf( recovered, 1 ) );
+        assertEquals( 0, valueOf( recovered, 2 ) );
+    }
+
+    @Test
+    public void concurrentCommitsAreAllDurableTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        LoggedPageFile crashed = open( file );
+        ExecutorService threads = Executors.newFixedThreadPool( 64 );
+        List<Future<?>> commits = new ArrayList<>();
+        // Holds the commits back until all of them wait, so they have to be forced together.
+        crashed.beginChange();
+
+        // when
+        for ( int i = 0; i < 64; i++ )
+        {
+            long page = i;
+            commits.add( threads.submit( () ->
+            {
+                crashed.writeBytes( page, page( page + 1 ) );
+                crashed.commit();
+                return null;
+            } ) );
+        }
+        while ( crashed.threadsWaitingForChanges() < 64 )
+        {
+            Thread.yield();
+        }
+        crashed.endChange();
+        for ( Future<?> commit : commits )
+        {
+            commit.get();
+        }
+        threads.shutdown();
+        LoggedPageFile recovered = open( copyOnDisk( file ) );
+
+        // then
+        assertEquals( 1, crashed.logForces.get() );
+        for ( long page = 0; page < 64; page++ )
+        {
+            assertEquals( page + 1, valueOf( recovered, page ) );
+        }
+    }
+
+    @Test
+    public void commitWaitsForChangesInProgressTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        LoggedPageFile crashed = open( file );
+        ExecutorService threads = Executors.newFixedThreadPool( 2 );
+        CountDownLatch halfWritten = new CountDownLatch( 1 );
+        CountDownLatch finish = new CountDownLatch( 1 );
+        Future<?> change = threads.submit( () ->
+        {
+            crashed.beginChange();
+            try
+            {
+                crashed.writeBytes( 1, page( 7 ) );
+                halfWritten.countDown();
+                finish.await();
+                crashed.writeBytes( 2, page( 7 ) );
+            }
+            finally
+            {
+                crashed.endChange();
+            }
+            return null;
+        } );
+        halfWritten.await();
+        crashed.writeBytes( 3, page( 9 ) );
+
+        // when
+        Future<?> commit = threads.submit( () ->
+        {
+            crashed.commit();
+            return null;
+        } );
+        while ( crashed.threadsWaitingForChanges() == 0 )
+        {
+            Thread.yield();
+        }
+        boolean committedHalfAChange = commit.isDone();
+        LoggedPageFile recoveredDuring = open( copyOnDisk( file ) );
+        finish.countDown();
+        change.get();
+        commit.get();
+        threads.shutdown();
+        LoggedPageFile recoveredAfter = open( copyOnDisk( file ) );
+
+        // then
+        assertFalse( committedHalfAChange );
+        assertEquals( 0, valueOf( recoveredDuring, 1 ) );
+        assertEquals( 7, valueOf( recoveredAfter, 1 ) );
+        assertEquals( 7, valueOf( recoveredAfter, 2 ) );
+        assertEquals( 9, valueOf( recoveredAfter, 3 ) );
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void commitInsideAChangeFailsTest() throws Exception
+    {
+        // given
+        LoggedPageFile pageFile = open( tempFile() );
+        pageFile.beginChange();
+
+        // when
+        try
+        {
+            pageFile.commit();
+        }
+        finally
+        {
+            pageFile.endChange();
+        }
+    }
+
+    @Test
+    public void groupLargerThanTheLogBufferIsRecoveredTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        LoggedPageFile crashed = open( file );
+        for ( long page = 0; page < 100; page++ )
+        {
+            crashed.writeBytes( page, page( page + 1 ) );
+        }
+        crashed.commit();
+
+        // when
+        LoggedPageFile recovered = open( copyOnDisk( file ) );
+
+        // then
+        for ( long page = 0; page < 100; page++ )
+        {
+            assertEquals( page + 1, valueOf( recovered, page ) );
+        }
+    }
+
+    @Test
+    public void commitPastTheLogLimitCheckpointsTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        File log = new File( file.getPath() + LoggedPageFile.LOG_SUFFIX );
+        LoggedPageFile pageFile = open( file, 3 * PersistedPageFile.PAGE_SIZE );
+        pageFile.writeBytes( 1, page( 7 ) );
+        pageFile.commit();
+        long logAfterFirstCommit = log.length();
+
+        // when
+        pageFile.writeBytes( 2, page( 8 ) );
+        pageFile.writeBytes( 3, page( 9 ) );
+        pageFile.commit();
+        LoggedPageFile recovered = open( copyOnDisk( file ) );
+
+        // then
+        assertTrue( logAfterFirstCommit > PersistedPageFile.PAGE_SIZE );
+        assertEquals( 0, log.length() );
+        assertEquals( 7, valueOf( recovered, 1 ) );
+        assertEquals( 8, valueOf( recovered, 2 ) );
+        assertEquals( 9, valueOf( recovered, 3 ) );
+    }
+
+    @Test
+    public void failedWriteBackKeepsTheLogTest() throws Exception
+    {
+        // given
+        File file = tempFile();
+        File log = new File( file.getPath() + LoggedPageFile.LOG_SUFFIX );
+        LoggedPageFile pageFile = open( file );
+        PagedFile working = pageFile.pagedFile;
+        pageFile.pagedFile = (PagedFile) Proxy.newProxyInstance( PagedFile.class.getClassLoader(),
+                new Class<?>[]{PagedFile.class}, ( proxy, method, args ) ->
+                {
+                    if ( method.getName().equals( "io" ) )
+                    {
+                        throw new IOException( "Disk full." );
+                    }
+                    return method.invoke( working, args );
+                } );
+        pageFile.writeBytes( 1, page( 7 ) );
+
+        // when
+        boolean commitFailed = false;
+        try
+        {
+            pageFile.commit();
+        }
+        catch ( IOException e )
+        {
+            commitFailed = true;
+        }
+        boolean checkpointFailed = false;
+        try
+        {
+            pageFile.force();
+        }
+        catch ( IOException e )
+        {
+            checkpointFailed = true;
+        }
+        long logAfterFailure = log.length();
+        LoggedPageFile recovered = open( copyOnDisk( file ) );
+        pageFile.pagedFile = working;
+        pageFile.commit();
+        pageFile.force();
+
+        // then
+        assertTrue( commitFailed );
+        assertTrue( checkpointFailed );
+        assertTrue( logAfterFailure > PersistedPageFile.PAGE_SIZE );
+        assertEquals( 7, valueOf( recovered, 1 ) );
+        assertEquals( 7, valueOf( pageFile, 1 ) );
+        assertEquals( 0, log.length() );
+    }
+
+    /**
+     * Opens the page file, to be closed after the test.
+     */
+    private LoggedPageFile open( File file ) throws IOException
+    {
+        return open( file, LoggedPageFile.DEFAULT_LOG_LIMIT );
+    }
+
+    private LoggedPageFile open( File file, long logLimit ) throws IOException
+    {
+        LoggedPageFile pageFile = new LoggedPageFile( file, logLimit );
+        pageFiles.add( pageFile );
+        return pageFile;
+    }
+
+    private static File tempFile() throws Exception
+    {
+        File file = File.createTempFile( "pathdb_logged", ".db" );
+        file.deleteOnExit();
+        new File( file.getPath() + LoggedPageFile.LOG_SUFFIX ).deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Copies the page file and its log as they are on disk, which is what is left of them after a crash.
+     */
+    private static File copyOnDisk( File file ) throws Exception
+    {
+        File copy = tempFile();
+        Files.copy( file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        Files.copy( Paths.get( file.getPath() + LoggedPageFile.LOG_SUFFIX ),
+                Paths.get( copy.getPath() + LoggedPageFile.LOG_SUFFIX ), StandardCopyOption.REPLACE_EXISTING );
+        return copy;
+    }
+
+    private static byte[] page( long value )
+    {
+        return ByteBuffer.allocate( PersistedPageFile.PAGE_SIZE ).putLong( 0, value ).array();
+    }
+
+    private static long valueOf( PersistedPageFile pageFile, long page )
+    {
+        return ByteBuffer.wrap( pageFile.getBytes( page ) ).getLong( 0 );
+    }
+}
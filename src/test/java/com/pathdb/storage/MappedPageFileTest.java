@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MappedPageFileTest
+{
+    @Test
+    public void writtenPagesCanBeReadBackTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_mapped", ".db" );
+        file.deleteOnExit();
+        MappedPageFile<MappedPage> pageFile = new MappedPageFile<>( file );
+        long lastPageInSecondSegment = (2 * MappedPageFile.PAGES_PER_SEGMENT) - 1;
+
+        // when
+        byte[] bytes = new byte[MappedPageFile.PAGE_SIZE];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[i] = (byte) (i % Byte.MAX_VALUE);
+        }
+        pageFile.writeBytes( 0, bytes );
+        pageFile.writeBytes( lastPageInSecondSegment, bytes );
+
+        // then
+        assertArrayEquals( bytes, pageFile.getBytes( 0 ) );
+        assertArrayEquals( bytes, pageFile.readPage( (int) lastPageInSecondSegment ).getByteRepresentation() );
+        pageFile.close();
+    }
+
+    @Test
+    public void pagesAreViewsOnTheFileTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_mapped", ".db" );
+        file.deleteOnExit();
+        MappedPageFile<MappedPage> pageFile = new MappedPageFile<>( file );
+
+        // when
+        ByteBuffer page = pageFile.getPage( 3 );
+        page.putLong( 0, 42L );
+        pageFile.close();
+        pageFile = new MappedPageFile<>( file );
+
+        // then
+        assertEquals( MappedPageFile.PAGE_SIZE, page.capacity() );
+        assertEquals( 42L, pageFile.getPage( 3 ).getLong( 0 ) );
+        pageFile.close();
+    }
+
+    @Test
+    public void closeCutsTheFileBackToTheLastPageTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_mapped", ".db" );
+        file.deleteOnExit();
+        MappedPageFile<MappedPage> pageFile = new MappedPageFile<>( file );
+
+        // when
+        pageFile.writeBytes( 4, new byte[MappedPageFile.PAGE_SIZE] );
+        pageFile.close();
+
+        // then
+        assertEquals( 5L * MappedPageFile.PAGE_SIZE, file.length() );
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PageBufferPoolTest
+{
+    @Test
+    public void evictedDirtyPagesAreWrittenBackTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_pool", ".db" );
+        file.deleteOnExit();
+        PersistedPageFile pageFile = new PersistedPageFile( file );
+        PageBufferPool pool = new PageBufferPool( pageFile, 2, 1 );
+
+        // when
+        for ( long page = 0; page < 10; page++ )
+        {
+            ByteBuffer frame = pool.pin( page );
+            frame.putLong( 0, page + 42 );
+            pool.unpin( page, true );
+        }
+
+        // then
+        assertEquals( 42L, ByteBuffer.wrap( pageFile.getBytes( 0 ) ).getLong( 0 ) );
+        for ( long page = 0; page < 10; page++ )
+        {
+            ByteBuffer frame = pool.pin( page );
+            assertEquals( page + 42, frame.getLong( 0 ) );
+            pool.unpin( page, false );
+        }
+    }
+
+    @Test
+    public void pinnedPagesShareTheirFrameTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_pool", ".db" );
+        file.deleteOnExit();
+        PageBufferPool pool = new PageBufferPool( new PersistedPageFile( file ), 4, 1 );
+
+        // when
+        ByteBuffer first = pool.pin( 7 );
+        ByteBuffer second = pool.pin( 7 );
+        pool.pin( 1 );
+        pool.pin( 2 );
+        pool.pin( 3 );
+
+        // then
+        assertSame( first, second );
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void poolFailsWhenAllFramesArePinnedTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_pool", ".db" );
+        file.deleteOnExit();
+        PageBufferPool pool = new PageBufferPool( new PersistedPageFile( file ), 2, 1 );
+
+        // when
+        pool.pin( 0 );
+        pool.pin( 1 );
+        pool.pin( 2 );
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void poolHasNoMoreFramesThanAskedForTest() throws Exception
+    {
+        // given
+        File file = File.createTempFile( "pathdb_pool", ".db" );
+        file.deleteOnExit();
+        PageBufferPool pool = new PageBufferPool( new PersistedPageFile( file ), 2, 16 );
+
+        // when
+        pool.pin( 0 );
+        pool.pin( 1 );
+        pool.pin( 2 );
+    }
+
+    @Test
+    public void failedFlushKeepsTheFrameDirtyTest() throws Exception
+    {
+        // given
+        FailingPageFile pageFile = new FailingPageFile();
+        PageBufferPool pool = new PageBufferPool( pageFile, 2, 1 );
+        pool.pin( 1 ).putLong( 0, 42 );
+        pool.unpin( 1, true );
+
+        // when
+        pageFile.failing = true;
+        boolean flushFailed = false;
+        try
+        {
+            pool.flush();
+        }
+        catch ( IOException e )
+        {
+            flushFailed = true;
+        }
+        pageFile.failing = false;
+        pool.flush();
+
+        // then
+        assertTrue( flushFailed );
+        assertEquals( 42L, ByteBuffer.wrap( pageFile.pages.get( 1L ) ).getLong( 0 ) );
+    }
+
+    @Test
+    public void failedWriteBackKeepsTheEvictedPageTest() throws Exception
+    {
+        // given
+        FailingPageFile pageFile = new FailingPageFile();
+        PageBufferPool pool = new PageBufferPool( pageFile, 1, 1 );
+        pool.pin( 0 ).putLong( 0, 42 );
+        pool.unpin( 0, true );
+
+        // when
+        pageFile.failing = true;
+        boolean pinFailed = false;
+        try
+        {
+            pool.pin( 1 );
+        }
+        catch ( IOException e )
+        {
+            pinFailed = true;
+        }
+        pageFile.failing = false;
+        long kept = pool.pin( 0 ).getLong( 0 );
+        pool.unpin( 0, false );
+        pool.pin( 1 );
+
+        // then
+        assertTrue( pinFailed );
+        assertEquals( 42L, kept );
+        assertEquals( 42L, ByteBuffer.wrap( pageFile.pages.get( 0L ) ).getLong( 0 ) );
+    }
+
+    @Test
+    public void readsNeverSeeHalfAWriteTest() throws Exception
+    {
+        // given
+        PageBufferPool pool = new PageBufferPool( new FailingPageFile(), 4, 1 );
+        AtomicBoolean writing = new AtomicBoolean( true );
+        Thread writer = new Thread( () ->
+        {
+            try
+            {
+                for ( long value = 1; value <= 20000; value++ )
+                {
+                    ByteBuffer page = ByteBuffer.allocate( PersistedPageFile.PAGE_SIZE );
+                    while ( page.hasRemaining() )
+                    {
+                        page.putLong( value );
+                    }
+                    pool.write( 1, page.array() );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+            finally
+            {
+                writing.set( false );
+            }
+        } );
+
+        // when
+        writer.start();
+        int tornReads = 0;
+        ByteBuffer copy = ByteBuffer.allocate( PersistedPageFile.PAGE_SIZE );
+        do
+        {
+            copy.clear();
+            pool.read( 1, copy );
+            long first = copy.getLong( 0 );
+            for ( int offset = 0; offset < PersistedPageFile.PAGE_SIZE; offset += Long.BYTES )
+            {
+                if ( copy.getLong( offset ) != first )
+                {
+                    tornReads++;
+                    break;
+                }
+            }
+        }
+        while ( writing.get() );
+        writer.join();
+
+        // then
+        assertEquals( 0, tornReads );
+        assertEquals( 20000L, pool.readLong( 1, PersistedPageFile.PAGE_SIZE - Long.BYTES ) );
+    }
+
+    /**
+     * Keeps the pages in memory, and fails every write while {@link #failing} is set.
+     */
+    private static class FailingPageFile extends PersistedPageFile<Page>
+    {
+        final Map<Long, byte[]> pages = new ConcurrentHashMap<>();
+        volatile boolean failing;
+
+        FailingPageFile() throws IOException
+        {
+            super( tempFile() );
+        }
+
+        @Override
+        void writeBytes( long page, byte[] bytes )
+        {
+            if ( failing )
+            {
+                throw new UncheckedIOException( new IOException( "Disk full." ) );
+            }
+            pages.put( page, bytes.clone() );
+        }
+
+        @Override
+        void readInto( long page, byte[] bytes )
+        {
+            byte[] image = pages.get( page );
+            if ( image != null )
+            {
+                System.arraycopy( image, 0, bytes, 0, bytes.length );
+            }
+        }
+
+        private static File tempFile() throws IOException
+        {
+            File file = File.createTempFile( "pathdb_pool", ".db" );
+            file.deleteOnExit();
+            return file;
+        }
+    }
+}
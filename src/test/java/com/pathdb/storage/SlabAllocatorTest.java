@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.storage;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.pathdb.storage.PersistedPageFile.PAGE_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlabAllocatorTest
+{
+    @Test
+    public void buffersAreRoundedToWholePagesTest() throws Exception
+    {
+        // given
+        SlabAllocator allocator = new SlabAllocator( 4 * PAGE_SIZE );
+
+        // when
+        ByteBuffer small = allocator.allocate( 10 );
+        ByteBuffer large = allocator.allocate( PAGE_SIZE + 1 );
+
+        // then
+        assertTrue( small.isDirect() );
+        assertEquals( PAGE_SIZE, small.capacity() );
+        assertEquals( 2 * PAGE_SIZE, large.capacity() );
+        assertEquals( 4 * PAGE_SIZE, allocator.reservedBytes() );
+    }
+
+    @Test
+    public void releasedBuffersAreReusedTest() throws Exception
+    {
+        // given
+        SlabAllocator allocator = new SlabAllocator( 4 * PAGE_SIZE );
+        ByteBuffer buffer = allocator.allocate( PAGE_SIZE );
+        buffer.position( 100 );
+
+        // when
+        allocator.release( buffer );
+        ByteBuffer reused = allocator.allocate( PAGE_SIZE );
+
+        // then
+        assertSame( buffer, reused );
+        assertEquals( 0, reused.position() );
+        assertEquals( 4 * PAGE_SIZE, allocator.reservedBytes() );
+    }
+}
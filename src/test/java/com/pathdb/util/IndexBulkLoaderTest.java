@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import com.pathdb.pageCacheSort.Sorter;
+import com.pathdb.pathIndex.SimpleDataGenerator;
+import com.pathdb.pathIndex.tree.IndexTree;
+import com.pathdb.pathIndex.tree.PageProxyCursor;
+import com.pathdb.pathIndex.tree.SearchCursor;
+import com.pathdb.storage.DiskCache;
+import com.pathdb.storage.PersistedPageHeader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexBulkLoaderTest
+{
+    private static final int KEY_SIZE = 4;
+    private static final int KEYS_PER_FULL_LEAF = (Sorter.ALT_MAX_PAGE_SIZE - 1) / (KEY_SIZE * Long.BYTES);
+    private static final int MAX_CHILDREN =
+            (DiskCache.PAGE_SIZE - PersistedPageHeader.NODE_HEADER_LENGTH) / ((KEY_SIZE + 1) * Long.BYTES);
+
+    @Test
+    public void loadFromSorterFindsEveryKeyTest() throws Exception
+    {
+        // given
+        List<long[]> keys = keys( 140000 );
+        Sorter sorter = new Sorter( KEY_SIZE );
+        addShuffled( sorter, keys );
+
+        // when
+        IndexTree tree = IndexBulkLoader.load( sorter );
+
+        // then
+        List<List<Long>> levels = checkLevels( tree );
+        assertTrue( levels.size() >= 3 );
+        assertEquals( 1, levels.get( 0 ).size() );
+        assertEveryKeyFound( tree, keys );
+    }
+
+    @Test
+    public void parallelRunFindsEveryKeyTest() throws Exception
+    {
+        // given
+        int leaves = 1100;
+        SimpleDataGenerator dataGenerator = new SimpleDataGenerator( leaves );
+        IndexBulkLoader bulkLoader = new IndexBulkLoader( dataGenerator.disk, leaves, KEY_SIZE );
+        bulkLoader.parallelism = 4;
+
+        // when
+        IndexTree tree = bulkLoader.run();
+
+        // then
+        List<List<Long>> levels = checkLevels( tree );
+        assertEquals( leaves, levels.get( levels.size() - 1 ).size() );
+        List<long[]> keys = new ArrayList<>();
+        for ( long i = 1; i <= (long) leaves * dataGenerator.keysPerPage; i++ )
+        {
+            keys.add( new long[]{i, i, i, i} );
+        }
+        assertEveryKeyFound( tree, keys );
+    }
+
+    @Test
+    public void fillFactorsLeaveRoomInEveryNodeTest() throws Exception
+    {
+        // given
+        List<long[]> keys = keys( 140000 );
+        Sorter sorter = new Sorter( KEY_SIZE );
+        sorter.leafFillFactor = 0.5;
+        addShuffled( sorter, keys );
+
+        // when
+        IndexTree tree = IndexBulkLoader.load( sorter, 0.5 );
+
+        // then
+        int keysPerLeaf = (int) (KEYS_PER_FULL_LEAF * 0.5);
+        int childrenPerNode = (int) (MAX_CHILDREN * 0.5);
+        List<List<Long>> levels = checkLevels( tree );
+        PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+        for ( List<Long> level : levels )
+        {
+            for ( int i = 0; i < level.size(); i++ )
+            {
+                cursor.goToPage( level.get( i ) );
+                int keysInNode = PersistedPageHeader.getNumberOfKeys( cursor );
+                if ( PersistedPageHeader.isLeafNode( cursor ) )
+                {
+                    // Only the last leaf may hold fewer keys.
+                    assertTrue( i == level.size() - 1 ? keysInNode <= keysPerLeaf : keysInNode == keysPerLeaf );
+                }
+                else
+                {
+                    // Only the last two nodes of a level may hold fewer children.
+                    int children = keysInNode + 1;
+                    assertTrue( i >= level.size() - 2 ? children <= childrenPerNode : children == childrenPerNode );
+                }
+            }
+        }
+        assertEveryKeyFound( tree, keys );
+    }
+
+    @Test
+    public void lastNodeOfALevelGetsTwoChildrenTest() throws Exception
+    {
+        // given
+        int leaves = 2 * MAX_CHILDREN + 1;
+        List<long[]> keys = keys( (leaves - 1) * KEYS_PER_FULL_LEAF + 1 );
+        Sorter sorter = new Sorter( KEY_SIZE );
+        addShuffled( sorter, keys );
+
+        // when
+        IndexTree tree = IndexBulkLoader.load( sorter );
+
+        // then
+        List<List<Long>> levels = checkLevels( tree );
+        assertEquals( leaves, levels.get( levels.size() - 1 ).size() );
+        assertEquals( 3, levels.get( levels.size() - 2 ).size() );
+        assertEveryKeyFound( tree, keys );
+    }
+
+    private static List<long[]> keys( int count )
+    {
+        List<long[]> keys = new ArrayList<>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            keys.add( new long[]{i / 1000, i % 1000, i, 7} );
+        }
+        return keys;
+    }
+
+    private static void addShuffled( Sorter sorter, List<long[]> keys ) throws IOException
+    {
+        List<long[]> shuffled = new ArrayList<>( keys );
+        Collections.shuffle( shuffled, new Random( 42 ) );
+        for ( long[] key : shuffled )
+        {
+            sorter.addUnsortedKey( key );
+        }
+    }
+
+    /**
+     * Walks the tree level by level from the root. The nodes of a level must be linked to each other in order, with no
+     * links off either end, and be exactly the children of the level above, in order. Every internal node must have at
+     * least two children.
+     *
+     * @return the node ids of every level, the root first and the leaves last.
+     */
+    private static List<List<Long>> checkLevels( IndexTree tree ) throws IOException
+    {
+        PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+        List<List<Long>> levels = new ArrayList<>();
+        List<Long> expected = Collections.singletonList( tree.rootNodeId );
+        while ( true )
+        {
+            List<Long> level = new ArrayList<>();
+            List<Long> children = new ArrayList<>();
+            long previous = -1;
+            long node = expected.get( 0 );
+            boolean leaves = false;
+            while ( node != -1 )
+            {
+                cursor.goToPage( node );
+                assertEquals( previous, PersistedPageHeader.getPrecedingID( cursor ) );
+                leaves = PersistedPageHeader.isLeafNode( cursor );
+                if ( !leaves )
+                {
+                    int childCount = PersistedPageHeader.getNumberOfKeys( cursor ) + 1;
+                    assertTrue( childCount >= 2 );
+                    for ( int i = 0; i < childCount; i++ )
+                    {
+                        children.add( tree.getChildIdAtIndex( cursor, i ) );
+                    }
+                }
+                level.add( node );
+                previous = node;
+                node = PersistedPageHeader.getSiblingID( cursor );
+            }
+            assertEquals( expected, level );
+            levels.add( level );
+            if ( leaves )
+            {
+                return levels;
+            }
+            expected = children;
+        }
+    }
+
+    private static void assertEveryKeyFound( IndexTree tree, List<long[]> keys ) throws IOException
+    {
+        PageProxyCursor cursor = tree.disk.getCursor( tree.rootNodeId );
+        long[] found = new long[KEY_SIZE];
+        for ( long[] key : keys )
+        {
+            SearchCursor results = tree.find( cursor, key );
+            assertTrue( results.next( cursor, found ) );
+            assertArrayEquals( key, found );
+        }
+    }
+}
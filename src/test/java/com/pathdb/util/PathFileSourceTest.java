@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2015-2017 - All rights reserved.
+ * This file is part of the pathdb project which is released under the GPLv3 license.
+ * See file LICENSE.txt or go to http://www.gnu.org/licenses/gpl.txt for full license details.
+ * You may use, distribute and modify this code under the terms of the GPLv3 license.
+ */
+
+package com.pathdb.util;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathFileSourceTest
+{
+    @Test
+    public void textEdgeListTest() throws Exception
+    {
+        // given
+        Path file = Files.createTempFile( "edges", ".txt" );
+        String text = "# comment\n1 2\n\n3\t4 0.5\r\n% other comment\n5,-6";
+        Files.write( file, text.getBytes( StandardCharsets.US_ASCII ) );
+
+        // when
+        List<long[]> keys;
+        try ( PathFileSource source = TextPathFileSource.edgeList( file ) )
+        {
+            keys = readKeys( source );
+        }
+
+        // then
+        assertEquals( 3, keys.size() );
+        assertArrayEquals( new long[]{2, 1, 2}, keys.get( 0 ) );
+        assertArrayEquals( new long[]{2, 3, 4}, keys.get( 1 ) );
+        assertArrayEquals( new long[]{2, 5, -6}, keys.get( 2 ) );
+        Files.delete( file );
+    }
+
+    @Test
+    public void byteAllOnesDoesNotEndTheTextTest() throws Exception
+    {
+        // given
+        Path file = Files.createTempFile( "edges", ".txt" );
+        byte[] text = "# \u00ff\u00ff\n1 2\n3 4\n".getBytes( StandardCharsets.ISO_8859_1 );
+        Files.write( file, text );
+
+        // when
+        List<long[]> keys;
+        try ( PathFileSource source = TextPathFileSource.edgeList( file ) )
+        {
+            keys = readKeys( source );
+        }
+
+        // then
+        assertEquals( (byte) 0xFF, text[2] );
+        assertEquals( 2, keys.size() );
+        assertArrayEquals( new long[]{2, 3, 4}, keys.get( 1 ) );
+        Files.delete( file );
+    }
+
+    @Test
+    public void textIdsAtTheEdgesOfLongTest() throws Exception
+    {
+        // given
+        Path file = Files.createTempFile( "edges", ".txt" );
+        String text = Long.MAX_VALUE + " " + Long.MIN_VALUE + "\n";
+        Files.write( file, text.getBytes( StandardCharsets.US_ASCII ) );
+
+        // when
+        List<long[]> keys;
+        try ( PathFileSource source = TextPathFileSource.edgeList( file ) )
+        {
+            keys = readKeys( source );
+        }
+
+        // then
+        assertArrayEquals( new long[]{2, Long.MAX_VALUE, Long.MIN_VALUE}, keys.get( 0 ) );
+        Files.delete( file );
+    }
+
+    @Test( expected = IOException.class )
+    public void textIdTooLargeForALongTest() throws Exception
+    {
+        readText( "1 9223372036854775808\n" );
+    }
+
+    @Test( expected = IOException.class )
+    public void textMinusWithoutDigitsTest() throws Exception
+    {
+        readText( "1 - 2\n" );
+    }
+
+    @Test
+    public void binaryPathsSpanSeveralPagesTest() throws Exception
+    {
+        // given
+        Path file = Files.createTempFile( "paths", ".bin" );
+        int paths = 10000;
+        try ( DataOutputStream out = new DataOutputStream( Files.newOutputStream( file ) ) )
+        {
+            for ( int i = 0; i < paths * 3; i++ )
+            {
+                out.writeLong( i );
+            }
+        }
+
+        // when
+        List<long[]> keys;
+        try ( PathFileSource source = new BinaryPathFileSource( file, 3 ) )
+        {
+            keys = readKeys( source );
+        }
+
+        // then
+        assertEquals( paths, keys.size() );
+        for ( int i = 0; i < paths; i++ )
+        {
+            assertArrayEquals( new long[]{3, 3 * i, 3 * i + 1, 3 * i + 2}, keys.get( i ) );
+        }
+        Files.delete( file );
+    }
+
+    @Test( expected = IOException.class )
+    public void truncatedBinaryFileTest() throws Exception
+    {
+        // given
+        Path file = Files.createTempFile( "paths", ".bin" );
+        Files.write( file, new byte[20] );
+
+        // when
+        try ( PathFileSource source = BinaryPathFileSource.edgeList( file ) )
+        {
+            readKeys( source );
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    private static List<long[]> readText( String text ) throws IOException
+    {
+        Path file = Files.createTempFile( "edges", ".txt" );
+        Files.write( file, text.getBytes( StandardCharsets.US_ASCII ) );
+        try ( PathFileSource source = TextPathFileSource.edgeList( file ) )
+        {
+            return readKeys( source );
+        }
+        finally
+        {
+            Files.delete( file );
+        }
+    }
+
+    private static List<long[]> readKeys( PathFileSource source ) throws IOException
+    {
+        List<long[]> keys = new ArrayList<>();
+        while ( source.hasNext() )
+        {
+            byte[] page = source.nextPage();
+            assertTrue( page.length > 0 );
+            ByteBuffer buffer = ByteBuffer.wrap( page );
+            while ( buffer.hasRemaining() )
+            {
+                long[] key = new long[source.keyLength];
+                for ( int i = 0; i < key.length; i++ )
+                {
+                    key[i] = buffer.getLong();
+                }
+                keys.add( key );
+            }
+        }
+        return keys;
+    }
+}